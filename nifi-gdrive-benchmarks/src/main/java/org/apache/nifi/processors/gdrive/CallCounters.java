@@ -0,0 +1,34 @@
+package org.apache.nifi.processors.gdrive;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Reports the HTTP calls and FlowFiles per iteration next to the throughput - and calls per FlowFile
+ * (the number regressions in batching or caching show up in first)
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class CallCounters {
+
+    public long httpCalls;
+    public long flowFiles;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        httpCalls = 0;
+        flowFiles = 0;
+    }
+
+    void record(long calls, long flowFileCount) {
+        httpCalls += calls;
+        flowFiles += flowFileCount;
+    }
+
+    public double callsPerFlowFile() {
+        return 0 == flowFiles ? 0 : httpCalls / (double) flowFiles;
+    }
+}
@@ -0,0 +1,63 @@
+package org.apache.nifi.processors.gdrive;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * In-memory transport answering every request with a canned response (picked by the given function) - counts the calls,
+ * so benchmarks can report calls per FlowFile. No network, so only the client and processor code is measured.
+ */
+class CannedDriveTransport extends MockHttpTransport {
+
+    static final String TIMESTAMP = "2021-11-11T00:00:00.000Z";
+
+    private final Function<GenericUrl, Object> responder;
+    private final AtomicLong calls = new AtomicLong();
+
+    /**
+     * @param responder gives the response for a request URL - either JSON (String) or media (byte[])
+     */
+    CannedDriveTransport(Function<GenericUrl, Object> responder) {
+        this.responder = responder;
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() {
+                calls.incrementAndGet();
+                final Object content = responder.apply(new GenericUrl(url));
+                final MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                if (content instanceof byte[]) {
+                    response.setContentType("application/octet-stream").setContent((byte[]) content);
+                } else {
+                    response.setContentType("application/json").setContent((String) content);
+                }
+                return response;
+            }
+        };
+    }
+
+    long getCalls() {
+        return calls.get();
+    }
+
+    Drive createDrive() {
+        return new Drive.Builder(this, JacksonFactory.getDefaultInstance(), null).setApplicationName("NiFi").build();
+    }
+
+    static String fileJson(String id, String name, String mimeType) {
+        return "{\"id\": \"" + id + "\", \"name\": \"" + name + "\", \"mimeType\": \"" + mimeType + "\", "
+                + "\"createdTime\": \"" + TIMESTAMP + "\", \"modifiedTime\": \"" + TIMESTAMP + "\", \"trashed\": false}";
+    }
+}
@@ -0,0 +1,80 @@
+package org.apache.nifi.processors.gdrive;
+
+import com.google.api.services.drive.Drive;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One onTrigger of FetchGdrive (one batch of FlowFiles) - throughput is batches per second
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FetchGdriveBenchmark {
+
+    @Param({"1024", "1048576"})
+    public int payloadSize;
+
+    @Param({"1", "10"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean useIncomingAttributes;
+
+    private CannedDriveTransport transport;
+    private TestRunner runner;
+    private final Map<String, String> attributes = new HashMap<>();
+
+    @Setup
+    public void setup() {
+        final byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        final String metadata = CannedDriveTransport.fileJson("0815", "file.bin", "application/octet-stream");
+        transport = new CannedDriveTransport(url -> "media".equals(url.getFirst("alt")) ? payload : metadata);
+        final Drive drive = transport.createDrive();
+        runner = TestRunners.newTestRunner(new FetchGdrive() {
+            @Override
+            Drive createDriveService(ProcessContext context) {
+                return drive;
+            }
+        });
+        runner.setProperty(FetchGdrive.IAM_USER_JSON, "irrelevant");
+        runner.setProperty(FetchGdrive.FILE, "${fileid}");
+        runner.setProperty(FetchGdrive.BATCH_SIZE, String.valueOf(batchSize));
+        runner.setProperty(FetchGdrive.USE_INCOMING_ATTRIBUTES, String.valueOf(useIncomingAttributes));
+        attributes.put("fileid", "0815");
+        attributes.put("filename", "file.bin");
+        attributes.put("modified", CannedDriveTransport.TIMESTAMP);
+        attributes.put("mime.type", "application/octet-stream");
+        runner.run(1, false, true); // (schedule once)
+    }
+
+    @TearDown
+    public void tearDown() {
+        runner.run(1, true, false);
+    }
+
+    @Benchmark
+    public int fetchBatch(CallCounters counters) {
+        for (int i = 0; i < batchSize; i++) {
+            runner.enqueue(new byte[0], attributes);
+        }
+        final long callsBefore = transport.getCalls();
+        runner.run(1, false, false);
+        final int flowFiles = runner.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS).size();
+        runner.clearTransferState();
+        counters.record(transport.getCalls() - callsBefore, flowFiles);
+        return flowFiles;
+    }
+}
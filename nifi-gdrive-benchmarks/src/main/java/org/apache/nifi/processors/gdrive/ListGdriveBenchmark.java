@@ -0,0 +1,122 @@
+package org.apache.nifi.processors.gdrive;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.services.drive.Drive;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full recursive listing (performListing via onTrigger) of a folder tree - throughput is listings per second
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListGdriveBenchmark {
+
+    /**
+     * flat: 2000 files in the root folder, wide: 50 subfolders of 40 files each, deep: a chain of 20 folders of 100 files each
+     */
+    @Param({"flat", "wide", "deep"})
+    public String treeShape;
+
+    @Param({"100", "1000"})
+    public int pageSize;
+
+    @Param({"1", "4"})
+    public int listingThreads;
+
+    private CannedDriveTransport transport;
+    private TestRunner runner;
+
+    @Setup
+    public void setup() {
+        final Map<String, List<String>> pages = new HashMap<>();
+        switch (treeShape) {
+            case "flat":
+                addFolder(pages, "root", 2000, 0);
+                break;
+            case "wide":
+                addFolder(pages, "root", 0, 50);
+                for (int i = 0; i < 50; i++) {
+                    addFolder(pages, "root-" + i, 40, 0);
+                }
+                break;
+            default:
+                String folderId = "root";
+                for (int depth = 0; depth < 20; depth++) {
+                    addFolder(pages, folderId, 100, depth < 19 ? 1 : 0);
+                    folderId = folderId + "-0";
+                }
+        }
+        transport = new CannedDriveTransport(url -> listResponse(pages, url));
+        final Drive drive = transport.createDrive();
+        runner = TestRunners.newTestRunner(new ListGdrive() {
+            @Override
+            Drive createDriveService(ProcessContext context) {
+                return drive;
+            }
+        });
+        runner.setProperty(ListGdrive.IAM_USER_JSON, "irrelevant");
+        runner.setProperty(ListGdrive.FOLDER, "root");
+        runner.setProperty(ListGdrive.RECURSIVE_SEARCH, "true");
+        runner.setProperty(ListGdrive.FROM_BEGINNING, "true");
+        runner.setProperty(ListGdrive.BATCH_SIZE, String.valueOf(pageSize));
+        runner.setProperty(ListGdrive.LISTING_THREADS, String.valueOf(listingThreads));
+        runner.run(1, false, true); // (schedule once - and warm up)
+        runner.clearTransferState();
+    }
+
+    @TearDown
+    public void tearDown() {
+        runner.run(1, true, false);
+    }
+
+    @Benchmark
+    public int listTree(CallCounters counters) {
+        final long callsBefore = transport.getCalls();
+        runner.run(1, false, false);
+        final int flowFiles = runner.getFlowFilesForRelationship(ListGdrive.REL_SUCCESS).size();
+        runner.clearTransferState();
+        counters.record(transport.getCalls() - callsBefore, flowFiles);
+        return flowFiles;
+    }
+
+    private void addFolder(Map<String, List<String>> pages, String folderId, int files, int subfolders) {
+        final List<String> entries = new ArrayList<>();
+        for (int i = 0; i < subfolders; i++) {
+            entries.add(CannedDriveTransport.fileJson(folderId + "-" + i, "folder" + i, ListGdrive.FOLDER_MIME_TYPE));
+        }
+        for (int i = 0; i < files; i++) {
+            entries.add(CannedDriveTransport.fileJson(folderId + "-f" + i, "file" + i + ".txt", "text/plain"));
+        }
+        final List<String> folderPages = new ArrayList<>();
+        for (int start = 0; start == 0 || start < entries.size(); start += pageSize) {
+            final int end = Math.min(entries.size(), start + pageSize);
+            final String nextPageToken = end < entries.size() ? "\"nextPageToken\": \"" + (folderPages.size() + 1) + "\", " : "";
+            folderPages.add("{" + nextPageToken + "\"files\": [" + String.join(", ", entries.subList(start, end)) + "]}");
+        }
+        pages.put(folderId, folderPages);
+    }
+
+    private static String listResponse(Map<String, List<String>> pages, GenericUrl url) {
+        final String query = (String) url.getFirst("q"); // ('<folder id>' in parents ...)
+        final String folderId = query.substring(1, query.indexOf('\'', 1));
+        final String pageToken = (String) url.getFirst("pageToken");
+        final List<String> folderPages = pages.get(folderId);
+        if (null == folderPages) {
+            return "{\"files\": []}";
+        }
+        return folderPages.get(null == pageToken ? 0 : Integer.parseInt(pageToken));
+    }
+}
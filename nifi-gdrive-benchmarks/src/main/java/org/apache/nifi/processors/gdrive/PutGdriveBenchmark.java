@@ -0,0 +1,89 @@
+package org.apache.nifi.processors.gdrive;
+
+import com.google.api.services.drive.Drive;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * The path resolution loop of PutGdrive (resolveFolder) for existing folders - throughput is resolved paths per second
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PutGdriveBenchmark {
+
+    // (the query of PutGdrive with groups for the name and the parent id - the names used here need no escaping)
+    private static final Pattern EXISTENCE_QUERY = Pattern.compile(Arrays.stream(PutGdrive.EXISTENCE_QUERY.split("%s", -1))
+            .map(Pattern::quote)
+            .collect(Collectors.joining("(.*)")));
+
+    @Param({"1", "5"})
+    public int depth;
+
+    /**
+     * number of different paths the FlowFiles go to (round robin)
+     */
+    @Param({"1", "100"})
+    public int distinctPaths;
+
+    @Param({"0", "1000"})
+    public int folderCacheSize;
+
+    private CannedDriveTransport transport;
+    private PutGdrive processor;
+    private final GdriveCounters gdriveCounters = new GdriveCounters();
+    private Drive drive;
+    private String[][] targetNames;
+    private int next;
+
+    @Setup
+    public void setup() {
+        // (every folder exists - its id is the path of ids)
+        transport = new CannedDriveTransport(url -> {
+            final String query = (String) url.getFirst("q");
+            final Matcher matcher = EXISTENCE_QUERY.matcher(query);
+            if (!matcher.matches()) { // (would measure something else)
+                throw new IllegalStateException("Unexpected query " + query);
+            }
+            final String name = matcher.group(1);
+            final String parentId = matcher.group(2);
+            return "{\"files\": [" + CannedDriveTransport.fileJson(parentId + "/" + name, name, ListGdrive.FOLDER_MIME_TYPE) + "]}";
+        });
+        drive = transport.createDrive();
+        processor = new PutGdrive();
+        final TestRunner runner = TestRunners.newTestRunner(processor);
+        runner.setProperty(PutGdrive.IAM_USER_JSON, "irrelevant");
+        runner.setProperty(PutGdrive.FOLDER, "root");
+        runner.setProperty(PutGdrive.FOLDER_CACHE_SIZE, String.valueOf(folderCacheSize));
+        processor.createFolderCache(runner.getProcessContext());
+        targetNames = new String[distinctPaths][];
+        for (int p = 0; p < distinctPaths; p++) {
+            targetNames[p] = new String[depth + 1];
+            for (int d = 0; d < depth; d++) {
+                targetNames[p][d] = "folder" + d + "-" + p;
+            }
+            targetNames[p][depth] = "file.txt";
+        }
+    }
+
+    @Benchmark
+    public String resolvePath(CallCounters counters) throws IOException {
+        final String[] targetName = targetNames[next++ % distinctPaths];
+        final long callsBefore = transport.getCalls();
+        final String folderId = processor.resolveFolder(gdriveCounters, drive, "root", targetName, new ArrayList<>());
+        counters.record(transport.getCalls() - callsBefore, 1);
+        return folderId;
+    }
+}
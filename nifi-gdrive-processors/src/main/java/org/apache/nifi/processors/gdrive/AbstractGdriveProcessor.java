@@ -1,23 +1,28 @@
 package org.apache.nifi.processors.gdrive;
 
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.util.StandardValidators;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public abstract class AbstractGdriveProcessor extends AbstractProcessor {
 
@@ -31,20 +36,117 @@ public abstract class AbstractGdriveProcessor extends AbstractProcessor {
     public static final PropertyDescriptor IAM_USER_JSON = new PropertyDescriptor.Builder()
             .name("IAM JSON")
             .displayName("IAM user JSON")
+            .description("JSON key of the IAM user (service account). Either this or a GDrive Client Service must be set")
             .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
-            .required(true)
+            .required(false)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .sensitive(true)
             .build();
 
+    public static final PropertyDescriptor GDRIVE_CLIENT_SERVICE = new PropertyDescriptor.Builder()
+            .name("GDrive Client Service")
+            .displayName("GDrive Client Service")
+            .description("Controller Service providing a shared GDrive client (preferred over IAM user JSON as client and access token are reused across processors). "
+                    + "Either this or IAM user JSON must be set")
+            .required(false)
+            .identifiesControllerService(GdriveClientService.class)
+            .build();
+
+    // client built from IAM_USER_JSON (when not using GDRIVE_CLIENT_SERVICE) - kept until stopped
+    private volatile Drive ownDriveService;
+
+    private final GdriveMetrics metrics = new GdriveMetrics();
+
+    // throttling of this processor's calls by the (shared) rate limiter since the last reportThrottling
+    private final GdriveCounters throttling = new GdriveCounters();
+
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        if (validationContext.getProperty(IAM_USER_JSON).isSet() == validationContext.getProperty(GDRIVE_CLIENT_SERVICE).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(GDRIVE_CLIENT_SERVICE.getDisplayName())
+                    .valid(false)
+                    .explanation("exactly one of " + IAM_USER_JSON.getDisplayName() + " and " + GDRIVE_CLIENT_SERVICE.getDisplayName() + " must be set")
+                    .build());
+        }
+        return results;
+    }
+
+    @OnStopped
+    public void releaseDriveService() {
+        ownDriveService = null;
+    }
+
+    @OnScheduled
+    public void resetMetrics() {
+        metrics.clear();
+    }
+
+    @OnStopped
+    public void logMetrics() {
+        if (!metrics.getLatencies().isEmpty()) {
+            getLogger().info("GDrive call latencies since started:{}", new Object[] {metrics.summary()});
+        }
+    }
+
+    /**
+     * @return the latency histograms of the GDrive calls since the processor was started (counts and bytes are counters)
+     */
+    public GdriveMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Executes a GDrive call and records its latency (can be used from any thread)
+     */
+    <T> T timed(String call, GdriveCall<T> gdriveCall) throws IOException {
+        final GdriveCounters previous = GdriveRateLimiter.countFor(throttling);
+        final long start = System.nanoTime();
+        try {
+            return gdriveCall.execute();
+        } finally {
+            metrics.recordLatency(call, System.nanoTime() - start);
+            GdriveRateLimiter.countFor(previous);
+        }
+    }
+
+    interface GdriveCall<T> {
+        T execute() throws IOException;
+    }
+
+    /**
+     * @return the attributes describing a file as written by FetchGdrive (and GetGdriveMetadata)
+     */
+    static Map<String, String> fileAttributes(File fileMeta) {
+        Map<String, String> allAttributes = new HashMap<>();
+        allAttributes.put("filename", fileMeta.getName());
+        allAttributes.put("fileid", fileMeta.getId());
+        allAttributes.put("created", fileMeta.getCreatedTime().toString());
+        allAttributes.put("modified", fileMeta.getModifiedTime().toString());
+        allAttributes.put("mime.type", fileMeta.getMimeType());
+        return allAttributes;
+    }
+
+    /**
+     * Adds the throttling of this processor's calls (see {@link #timed}) since the last report to the counters
+     */
+    void reportThrottling(ProcessSession session) {
+        throttling.drainTo(session);
+    }
+
     Drive createDriveService(ProcessContext context) throws IOException, GeneralSecurityException {
-        final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-        final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
-        // get IAM file and provide it as stream (like we'll store it as secret in NiFi)
-        return new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY, GoogleCredential
-                .fromStream(new ByteArrayInputStream(context.getProperty(IAM_USER_JSON).evaluateAttributeExpressions().getValue().getBytes(StandardCharsets.UTF_8)))
-                .createScoped(Arrays.asList(HTTPS_WWW_GOOGLEAPIS_COM_AUTH_DRIVE)))
-                .setApplicationName("NiFi")
-                .build();
+        final GdriveClientService clientService = context.getProperty(GDRIVE_CLIENT_SERVICE).asControllerService(GdriveClientService.class);
+        if (null != clientService) {
+            return clientService.getDrive();
+        }
+        Drive driveService = ownDriveService;
+        if (null == driveService) {
+            final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+            driveService = StandardGdriveClientService.createDrive(HTTP_TRANSPORT, StandardGdriveClientService.createCredential(
+                    context.getProperty(IAM_USER_JSON).evaluateAttributeExpressions().getValue(), HTTP_TRANSPORT));
+            ownDriveService = driveService;
+        }
+        return driveService;
     }
 }
@@ -0,0 +1,63 @@
+package org.apache.nifi.processors.gdrive;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small thread-safe cache that holds at most maxSize entries (evicting the least recently used one)
+ * and forgets entries after a fixed time since they were put.
+ */
+class ExpiringLruCache<K, V> {
+
+    private final long expirationNanos;
+    private final Map<K, CacheEntry<V>> entries;
+
+    ExpiringLruCache(final int maxSize, long expiration, TimeUnit unit) {
+        this.expirationNanos = unit.toNanos(expiration);
+        this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    synchronized V get(K key) {
+        final CacheEntry<V> entry = entries.get(key);
+        if (null == entry) {
+            return null;
+        }
+        if (System.nanoTime() - entry.created > expirationNanos) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    synchronized void put(K key, V value) {
+        entries.put(key, new CacheEntry<>(value, System.nanoTime()));
+    }
+
+    synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static class CacheEntry<V> {
+        final V value;
+        final long created;
+
+        CacheEntry(V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
@@ -1,50 +1,242 @@
 package org.apache.nifi.processors.gdrive;
 
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.DateTime;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
 import org.apache.commons.io.IOUtils;
 import org.apache.nifi.annotation.behavior.*;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Serializer;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.stream.io.ByteCountingOutputStream;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
 @Tags({"Google", "GDrive", "Get", "Fetch"})
-@CapabilityDescription("Retrieves the contents from GDrive and writes it to the content of a FlowFile")
+@CapabilityDescription("Retrieves the contents from GDrive and writes it to the content of a FlowFile - by file id or by a path below a folder. "
+        + "With a Distributed Cache Service, files whose version did not change since they were last fetched are not downloaded again")
+@ReadsAttributes({
+        @ReadsAttribute(attribute = "filename", description = "With Use Incoming Attributes: the name of the file (as written by ListGdrive)"),
+        @ReadsAttribute(attribute = "modified", description = "With Use Incoming Attributes: the modified date of the file (as written by ListGdrive)"),
+        @ReadsAttribute(attribute = "mime.type", description = "With Use Incoming Attributes: the mime type of the file (as written by ListGdrive)"),
+        @ReadsAttribute(attribute = "file.size", description = "With Use Incoming Attributes and parallel downloads: the size of the file (ListGdrive Additional Fields: size)"),
+        @ReadsAttribute(attribute = "file.version", description = "With Use Incoming Attributes and a Distributed Cache Service: the version of the file (ListGdrive Additional Fields: version)"),
+        @ReadsAttribute(attribute = "file.md5Checksum", description = "With Use Incoming Attributes and a Distributed Cache Service: the MD5 of the file if any (ListGdrive Additional Fields: md5Checksum)")
+})
 @WritesAttributes({
         @WritesAttribute(attribute = "filename", description = "The name of the file"),
-        @WritesAttribute(attribute = "fileid", description = "The id of the file = the id given"),
+        @WritesAttribute(attribute = "fileid", description = "The id of the file = the id given (or the id the path was resolved to)"),
         @WritesAttribute(attribute = "created", description = "The created date of the file"),
         @WritesAttribute(attribute = "modified", description = "The modified date of the file"),
-        @WritesAttribute(attribute = "mime.type", description = "The mime type of the file")
+        @WritesAttribute(attribute = "mime.type", description = "The mime type of the file"),
+        @WritesAttribute(attribute = "file.version", description = "With a Distributed Cache Service: the version of the file"),
+        @WritesAttribute(attribute = "file.size", description = "With Range Start or Max Bytes: the size of the whole file (if known)"),
+        @WritesAttribute(attribute = "range.start", description = "With Range Start or Max Bytes: the offset of the first byte fetched"),
+        @WritesAttribute(attribute = "range.end", description = "With Range Start or Max Bytes: the offset of the last byte fetched (unless nothing was fetched)"),
+        @WritesAttribute(attribute = "range.length", description = "With Range Start or Max Bytes: the number of bytes fetched")
 })
 public class FetchGdrive extends AbstractGdriveProcessor {
 
+    public static final AllowableValue LOOKUP_FILE_ID = new AllowableValue("fileid", "File ID",
+            "File is the id of the file in GDrive");
+    public static final AllowableValue LOOKUP_PATH = new AllowableValue("path", "Path",
+            "File is the slash-separated path of the file below Folder - resolved one segment at a time (using the Path Cache)");
+
+    public static final PropertyDescriptor LOOKUP_MODE = new PropertyDescriptor.Builder()
+            .name("Lookup Mode")
+            .displayName("Lookup Mode")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("How the file to fetch is given")
+            .required(true)
+            .allowableValues(LOOKUP_FILE_ID, LOOKUP_PATH)
+            .defaultValue(LOOKUP_FILE_ID.getValue())
+            .build();
+
     public static final PropertyDescriptor FILE = new PropertyDescriptor.Builder()
             .name("File")
             .displayName("File")
-            .description("ID of the file in GDrive")
+            .description("ID of the file in GDrive - or, with Lookup Mode Path, the path of the file below Folder (e.g. a/b/file.txt)")
             .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
             .required(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor FOLDER = new PropertyDescriptor.Builder()
+            .name("Folder")
+            .displayName("Folder")
+            .description("With Lookup Mode Path: ID of the folder in GDrive the path starts in")
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor PATH_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("Path Cache Size")
+            .displayName("Path Cache Size")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("With Lookup Mode Path: number of resolved path segments (parent folder id and name to id) to remember, so files in the same "
+                    + "folders don't look up every segment again. 0 disables the cache")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("1000")
+            .build();
+
+    static final PropertyDescriptor PATH_CACHE_EXPIRATION = new PropertyDescriptor.Builder()
+            .name("Path Cache Expiration")
+            .displayName("Path Cache Expiration")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("How long a resolved path segment is remembered. Entries are also dropped as soon as GDrive reports the file as not found")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("10 min")
+            .build();
+
+    static final PropertyDescriptor RANGE_START = new PropertyDescriptor.Builder()
+            .name("Range Start")
+            .displayName("Range Start")
+            .description("Offset of the first byte to fetch. If this or Max Bytes is set, only that part of the file is fetched (with a single Range "
+                    + "request) - e.g. to read headers without downloading the whole file")
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .required(false)
+            .addValidator(StandardValidators.createLongValidator(0, Long.MAX_VALUE, true))
+            .build();
+
+    static final PropertyDescriptor MAX_BYTES = new PropertyDescriptor.Builder()
+            .name("Max Bytes")
+            .displayName("Max Bytes")
+            .description("Maximum number of bytes to fetch (from Range Start or the beginning) - e.g. 64 KB to fetch the head of a file only. "
+                    + "If not set, the file is fetched up to its end")
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("Batch Size")
+            .displayName("Batch Size")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Maximum number of FlowFiles fetched in a single run. All of them are committed together, so larger values "
+                    + "reduce session commit overhead for many small files. Failures are still routed per FlowFile.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10")
+            .build();
+
+    static final PropertyDescriptor USE_INCOMING_ATTRIBUTES = new PropertyDescriptor.Builder()
+            .name("Use Incoming Attributes")
+            .displayName("Use Incoming Attributes")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("If true, the filename, modified and mime.type attributes already present (e.g. as written by ListGdrive) are trusted, "
+                    + "so only the content is requested from GDrive. Metadata is only requested for FlowFiles lacking one of them "
+                    + "(or file.size when using parallel downloads)")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    static final PropertyDescriptor PARALLEL_DOWNLOAD_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Parallel Download Threshold")
+            .displayName("Parallel Download Threshold")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Files of at least this size are downloaded in ranges over several connections in parallel. "
+                    + "If not set, every file is downloaded over a single connection")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor DOWNLOAD_CHUNK_SIZE = new PropertyDescriptor.Builder()
+            .name("Download Chunk Size")
+            .displayName("Download Chunk Size")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Size of each range of a parallel download. Up to Download Concurrency ranges are held in memory at a time "
+                    + "(for all concurrent tasks together)")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("16 MB")
+            .build();
+
+    static final PropertyDescriptor DOWNLOAD_CONCURRENCY = new PropertyDescriptor.Builder()
+            .name("Download Concurrency")
+            .displayName("Download Concurrency")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Number of ranges of a parallel download fetched at the same time (shared by all concurrent tasks)")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("4")
+            .build();
+
+    static final PropertyDescriptor DISTRIBUTED_CACHE_SERVICE = new PropertyDescriptor.Builder()
+            .name("Distributed Cache Service")
+            .displayName("Distributed Cache Service")
+            .description("If set, the version (and MD5) of each fetched file is remembered (cluster-wide) and a file is only downloaded again "
+                    + "when GDrive reports a different one - otherwise the FlowFile is routed to unchanged without content")
+            .required(false)
+            .identifiesControllerService(DistributedMapCacheClient.class)
+            .build();
+
+    public static final Relationship REL_UNCHANGED = new Relationship.Builder().name("unchanged")
+            .description("FlowFiles for files not changed since the last fetch are routed to unchanged (only with a Distributed Cache Service)").build();
+
     public static final List<PropertyDescriptor> properties = Collections.unmodifiableList(Arrays.asList(
-        IAM_USER_JSON, FILE));
+        IAM_USER_JSON, GDRIVE_CLIENT_SERVICE, LOOKUP_MODE, FILE, FOLDER, PATH_CACHE_SIZE, PATH_CACHE_EXPIRATION, RANGE_START, MAX_BYTES, BATCH_SIZE, USE_INCOMING_ATTRIBUTES, PARALLEL_DOWNLOAD_THRESHOLD, DOWNLOAD_CHUNK_SIZE, DOWNLOAD_CONCURRENCY,
+        DISTRIBUTED_CACHE_SERVICE));
 
     public static final Set<Relationship> relationships = Collections.unmodifiableSet(
             new HashSet<>(Arrays.asList(REL_SUCCESS, REL_FAILURE)));
 
+    public static final Set<Relationship> relationshipsWithUnchanged = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList(REL_SUCCESS, REL_FAILURE, REL_UNCHANGED)));
+
+    static final String CACHE_KEY_PREFIX = "gdrive.fetch.";
+
+    static final Serializer<String> STRING_SERIALIZER = (value, output) -> output.write(value.getBytes(StandardCharsets.UTF_8));
+    static final Deserializer<String> STRING_DESERIALIZER = input -> null == input || input.length == 0 ? null : new String(input, StandardCharsets.UTF_8);
+
+    private volatile Set<Relationship> currentRelationships = relationships;
+
+    private volatile ExpiringLruCache<String, String> pathCache;
+    private volatile ExecutorService downloadExecutor;
+    private volatile long parallelDownloadThreshold;
+    private volatile int downloadChunkSize;
+    private volatile int downloadConcurrency;
+    volatile Semaphore downloadPermits; // (one per range held in memory - shared by all tasks)
+
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return properties;
@@ -52,40 +244,452 @@ public class FetchGdrive extends AbstractGdriveProcessor {
 
     @Override
     public Set<Relationship> getRelationships() {
-        return relationships;
+        return currentRelationships;
+    }
+
+    @Override
+    public void onPropertyModified(PropertyDescriptor descriptor, String oldValue, String newValue) {
+        if (DISTRIBUTED_CACHE_SERVICE.equals(descriptor)) { // (unchanged only exists when it can be used)
+            currentRelationships = null == newValue ? relationships : relationshipsWithUnchanged;
+        }
     }
 
     @Override
-    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException { // TODO: more trace - 2nd mode: use filename instead of fileid
-        FlowFile flowFile = session.get();
-        if (null == flowFile) {
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        if (LOOKUP_PATH.getValue().equals(validationContext.getProperty(LOOKUP_MODE).getValue()) && !validationContext.getProperty(FOLDER).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(FOLDER.getDisplayName())
+                    .valid(false)
+                    .explanation(FOLDER.getDisplayName() + " is required with " + LOOKUP_MODE.getDisplayName() + " " + LOOKUP_PATH.getDisplayName())
+                    .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void createPathCache(ProcessContext context) {
+        final int cacheSize = context.getProperty(PATH_CACHE_SIZE).asInteger();
+        pathCache = LOOKUP_PATH.getValue().equals(context.getProperty(LOOKUP_MODE).getValue()) && cacheSize > 0
+                ? new ExpiringLruCache<>(cacheSize, context.getProperty(PATH_CACHE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    @OnScheduled
+    public void createDownloadExecutor(ProcessContext context) {
+        if (!context.getProperty(PARALLEL_DOWNLOAD_THRESHOLD).isSet()) {
             return;
         }
+        parallelDownloadThreshold = context.getProperty(PARALLEL_DOWNLOAD_THRESHOLD).asDataSize(DataUnit.B).longValue();
+        downloadChunkSize = (int) Math.min(context.getProperty(DOWNLOAD_CHUNK_SIZE).asDataSize(DataUnit.B).longValue(), Integer.MAX_VALUE - 8);
+        downloadConcurrency = context.getProperty(DOWNLOAD_CONCURRENCY).asInteger();
+        downloadPermits = new Semaphore(downloadConcurrency);
+        final AtomicInteger threadCount = new AtomicInteger();
+        downloadExecutor = Executors.newFixedThreadPool(downloadConcurrency, r -> {
+            final Thread thread = new Thread(r, "FetchGdrive download " + getIdentifier() + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @OnStopped
+    public void shutdownDownloadExecutor() {
+        if (null != downloadExecutor) {
+            downloadExecutor.shutdownNow();
+            downloadExecutor = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException { // TODO: more trace
+        final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+        final Drive service;
         try {
-            final Drive service = createDriveService(context);
-            final Drive.Files.Get get = service.files()
-                    .get(context.getProperty(FILE).evaluateAttributeExpressions(flowFile).getValue())
-                    .setFields("id, name, mimeType, createdTime, modifiedTime");
-            // get metadata
-            File fileMeta = get.execute();
-            Map<String, String> allAttributes = new HashMap<>();
-            allAttributes.put("filename", fileMeta.getName());
-            allAttributes.put("fileid", fileMeta.getId());
-            allAttributes.put("created", fileMeta.getCreatedTime().toString());
-            allAttributes.put("modified", fileMeta.getModifiedTime().toString());
-            allAttributes.put("mime.type", fileMeta.getMimeType());
-            flowFile = session.putAllAttributes(flowFile, allAttributes);
-            // get contents
-            OutputStream contentStream = session.write(flowFile);
-            IOUtils.copy(get.executeMediaAsInputStream(), contentStream);
-            contentStream.close();
-            session.transfer(flowFile, REL_SUCCESS);
-            session.commit();
+            service = createDriveService(context);
         } catch (final Exception e) {
             getLogger().error("Failed to fetch contents due to {}", new Object[] {e}, e);
-            session.transfer(flowFile, REL_FAILURE);
+            session.transfer(flowFiles, REL_FAILURE);
             session.commit();
             context.yield();
+            return;
+        }
+        final boolean useIncomingAttributes = context.getProperty(USE_INCOMING_ATTRIBUTES).asBoolean();
+        final DistributedMapCacheClient cache = context.getProperty(DISTRIBUTED_CACHE_SERVICE).asControllerService(DistributedMapCacheClient.class);
+        final boolean pathMode = LOOKUP_PATH.getValue().equals(context.getProperty(LOOKUP_MODE).getValue());
+        boolean failed = false;
+        // (remembered only once committed - a rolled back fetch must not be skipped as unchanged next time)
+        final Map<String, String> fetchedVersions = new LinkedHashMap<>();
+        for (FlowFile flowFile : flowFiles) {
+            try {
+                final String file = context.getProperty(FILE).evaluateAttributeExpressions(flowFile).getValue();
+                final String folderId = pathMode ? context.getProperty(FOLDER).evaluateAttributeExpressions(flowFile).getValue() : null;
+                final List<String> cachedPathKeys = new ArrayList<>();
+                String fileId = pathMode ? resolvePathOrRetry(session, service, folderId, file, cachedPathKeys) : file;
+                Drive.Files.Get get = metadataRequest(service, fileId, null != cache);
+                // get metadata (unless we have it already)
+                File fileMeta = useIncomingAttributes ? metadataFromAttributes(flowFile, fileId, null != cache) : null;
+                if (null == fileMeta) {
+                    try {
+                        fileMeta = timed("metadata", get::execute);
+                    } catch (GoogleJsonResponseException e) {
+                        if (e.getStatusCode() != 404 || cachedPathKeys.isEmpty()) {
+                            throw e;
+                        }
+                        // (cached path might be stale - resolve it again)
+                        invalidatePathCache(cachedPathKeys);
+                        fileId = resolvePath(session, service, folderId, file, null);
+                        get = metadataRequest(service, fileId, null != cache);
+                        fileMeta = timed("metadata", get::execute);
+                    }
+                    session.adjustCounter("GDrive metadata requests", 1, false);
+                    flowFile = session.putAllAttributes(flowFile, fileAttributes(fileMeta));
+                } else {
+                    flowFile = session.putAttribute(flowFile, "fileid", fileId);
+                }
+                // (a part only, if requested)
+                final PropertyValue rangeStartValue = context.getProperty(RANGE_START).evaluateAttributeExpressions(flowFile);
+                final PropertyValue maxBytesValue = context.getProperty(MAX_BYTES).evaluateAttributeExpressions(flowFile);
+                final Long rangeStart = isEmpty(rangeStartValue) ? null : rangeStartValue.asLong();
+                final Long maxBytes = isEmpty(maxBytesValue) ? null : maxBytesValue.asDataSize(DataUnit.B).longValue();
+                final boolean partial = null != rangeStart || null != maxBytes;
+                final long start = null == rangeStart ? 0L : rangeStart;
+                // skip the download when we fetched this very version (and part) before
+                String fetchedVersion = null == cache ? null : fetchedVersion(fileMeta, partial, start, maxBytes);
+                if (null != fetchedVersion) {
+                    flowFile = session.putAttribute(flowFile, "file.version", String.valueOf(fileMeta.getVersion()));
+                    if (fetchedVersion.equals(cachedVersion(cache, fileId))) {
+                        getLogger().debug("{} unchanged since last fetch (version {}) - not downloading", new Object[] {fileId, fileMeta.getVersion()});
+                        session.adjustCounter("GDrive unchanged fetches skipped", 1, false);
+                        session.transfer(flowFile, REL_UNCHANGED);
+                        continue;
+                    }
+                }
+                // get contents
+                long bytesFetched;
+                try {
+                    bytesFetched = download(session, flowFile, service, get, fileMeta, partial, start, maxBytes);
+                } catch (IOException e) {
+                    if (!isNotFound(e) || cachedPathKeys.isEmpty()) {
+                        throw e;
+                    }
+                    // (cached path might be stale - without a metadata request, the media request is the first to tell: resolve it again)
+                    invalidatePathCache(cachedPathKeys);
+                    fileId = resolvePath(session, service, folderId, file, null);
+                    get = metadataRequest(service, fileId, null != cache);
+                    fileMeta = timed("metadata", get::execute); // (the incoming attributes describe the stale file)
+                    session.adjustCounter("GDrive metadata requests", 1, false);
+                    flowFile = session.putAllAttributes(flowFile, fileAttributes(fileMeta));
+                    fetchedVersion = null == cache ? null : fetchedVersion(fileMeta, partial, start, maxBytes);
+                    bytesFetched = download(session, flowFile, service, get, fileMeta, partial, start, maxBytes);
+                }
+                if (partial) {
+                    flowFile = session.putAllAttributes(flowFile, rangeAttributes(fileMeta.getSize(), start, bytesFetched));
+                    session.adjustCounter("GDrive partial fetches", 1, false);
+                }
+                session.adjustCounter("GDrive files fetched", 1, false);
+                session.adjustCounter("GDrive bytes fetched", bytesFetched, false);
+                if (null != fetchedVersion) {
+                    fetchedVersions.put(fileId, fetchedVersion);
+                }
+                session.transfer(flowFile, REL_SUCCESS);
+            } catch (final Exception e) {
+                getLogger().error("Failed to fetch contents due to {}", new Object[] {e}, e);
+                session.transfer(flowFile, REL_FAILURE);
+                failed = true;
+            }
+        }
+        reportThrottling(session);
+        session.commit(); // (once for the whole batch)
+        fetchedVersions.forEach((fileId, fetchedVersion) -> rememberVersion(cache, fileId, fetchedVersion));
+        if (failed) {
+            context.yield();
+        }
+    }
+
+    /**
+     * @return what identifies the version (and part) fetched - null if the file has no version
+     */
+    private static String fetchedVersion(File fileMeta, boolean partial, long start, Long maxBytes) {
+        return null == versionToken(fileMeta) ? null : versionToken(fileMeta) + (partial ? "@" + start + "+" + (null == maxBytes ? "" : maxBytes) : "");
+    }
+
+    /**
+     * Downloads the contents (or a part) into the FlowFile - nothing is written if the first request fails
+     *
+     * @return the number of bytes written
+     */
+    private long download(ProcessSession session, FlowFile flowFile, Drive service, Drive.Files.Get get, File fileMeta, boolean partial, long start, Long maxBytes)
+            throws IOException {
+        try (ByteCountingOutputStream contentStream = new ByteCountingOutputStream(session.write(flowFile))) {
+            if (partial) {
+                timed("media (partial)", () -> downloadPartial(get, fileMeta.getSize(), start, maxBytes, contentStream));
+            } else if (null != downloadExecutor && null != fileMeta.getSize() && fileMeta.getSize() >= parallelDownloadThreshold) {
+                timed("media (parallel)", () -> {
+                    downloadRanges(service, fileMeta.getId(), fileMeta.getSize(), contentStream);
+                    return null;
+                });
+            } else {
+                timed("media", () -> { // (until the last byte)
+                    try (InputStream mediaStream = get.executeMediaAsInputStream()) {
+                        return IOUtils.copyLarge(mediaStream, contentStream);
+                    }
+                });
+            }
+            return contentStream.getBytesWritten();
+        }
+    }
+
+    /**
+     * @return true if the request failed with 404 (also for a failed range of a parallel download)
+     */
+    private static boolean isNotFound(IOException e) {
+        for (Throwable cause = e; null != cause; cause = cause.getCause()) {
+            if (cause instanceof GoogleJsonResponseException && ((GoogleJsonResponseException) cause).getStatusCode() == 404) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Drive.Files.Get metadataRequest(Drive service, String fileId, boolean withVersion) throws IOException {
+        return service.files()
+                .get(fileId)
+                .setFields(withVersion ? "id, name, mimeType, createdTime, modifiedTime, size, version, md5Checksum" : "id, name, mimeType, createdTime, modifiedTime, size");
+    }
+
+    /**
+     * Resolves the path (using the cache) - and once more without the cache if anything on the way is not found, as cached folders
+     * might have been moved or deleted meanwhile
+     *
+     * @param cachedPathKeys collects the cache keys served from cache (empty after a retry)
+     * @return the id of the file
+     */
+    private String resolvePathOrRetry(ProcessSession session, Drive service, String folderId, String path, List<String> cachedPathKeys) throws IOException {
+        try {
+            return resolvePath(session, service, folderId, path, cachedPathKeys);
+        } catch (FileNotFoundException | GoogleJsonResponseException e) {
+            if (cachedPathKeys.isEmpty() || (e instanceof GoogleJsonResponseException && ((GoogleJsonResponseException) e).getStatusCode() != 404)) {
+                throw e;
+            }
+            getLogger().debug("Cached folder on the path not found anymore - resolving {} again", new Object[] {path});
+            invalidatePathCache(cachedPathKeys);
+            return resolvePath(session, service, folderId, path, null);
+        }
+    }
+
+    /**
+     * Walks the path from the folder one segment at a time (the last one being the file)
+     *
+     * @param cachedPathKeys collects the cache keys served from cache (null to bypass the cache for lookups)
+     * @return the id of the file
+     */
+    String resolvePath(ProcessSession session, Drive service, String folderId, String path, List<String> cachedPathKeys) throws IOException {
+        final ExpiringLruCache<String, String> cache = pathCache;
+        String currentId = folderId;
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue; // (leading, trailing or double slashes)
+            }
+            final String cacheKey = currentId + "/" + segment;
+            if (null != cache && null != cachedPathKeys) {
+                final String cachedId = cache.get(cacheKey);
+                if (null != cachedId) {
+                    session.adjustCounter("GDrive path cache hits", 1, false);
+                    cachedPathKeys.add(cacheKey);
+                    currentId = cachedId;
+                    continue;
+                }
+            }
+            final Drive.Files.List list = service.files().list()
+                    .setQ("name = '" + ListGdrive.escapeQueryValue(segment) + "' and '" + ListGdrive.escapeQueryValue(currentId) + "' in parents and trashed = false")
+                    .setPageSize(1)
+                    .setFields("files(id)");
+            final FileList result = timed("path lookup", list::execute);
+            session.adjustCounter("GDrive path lookups", 1, false);
+            if (null == result.getFiles() || result.getFiles().isEmpty()) {
+                throw new FileNotFoundException("No " + segment + " in folder " + currentId + " (resolving " + path + " below " + folderId + ")");
+            }
+            currentId = result.getFiles().get(0).getId();
+            if (null != cache) {
+                cache.put(cacheKey, currentId);
+            }
+        }
+        return currentId;
+    }
+
+    private void invalidatePathCache(List<String> cacheKeys) {
+        final ExpiringLruCache<String, String> cache = pathCache;
+        if (null != cache) {
+            cacheKeys.forEach(cache::remove);
+        }
+        cacheKeys.clear();
+    }
+
+    /**
+     * @return the metadata as given by the attributes (i.e. from ListGdrive) or null if any needed attribute is missing
+     */
+    File metadataFromAttributes(FlowFile flowFile, String fileId, boolean needVersion) {
+        final String name = flowFile.getAttribute("filename");
+        final String modified = flowFile.getAttribute("modified");
+        final String mimeType = flowFile.getAttribute(CoreAttributes.MIME_TYPE.key());
+        final String size = flowFile.getAttribute("file.size");
+        final String version = flowFile.getAttribute("file.version");
+        if (null == name || null == modified || null == mimeType || (null != downloadExecutor && null == size) || (needVersion && null == version)) {
+            return null; // (the size is only needed to decide on parallel downloads, the version only for the cache)
+        }
+        try {
+            return new File()
+                    .setId(fileId)
+                    .setName(name)
+                    .setModifiedTime(DateTime.parseRfc3339(modified))
+                    .setMimeType(mimeType)
+                    .setSize(null == size ? null : Long.valueOf(size))
+                    .setVersion(null == version ? null : Long.valueOf(version))
+                    .setMd5Checksum(flowFile.getAttribute("file.md5Checksum"));
+        } catch (NumberFormatException e) {
+            getLogger().debug("Cannot use attributes of {} - getting metadata", new Object[] {flowFile}, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return what identifies the content of the file (version and MD5 - if any) or null if unknown
+     */
+    static String versionToken(File fileMeta) {
+        if (null == fileMeta.getVersion()) {
+            return null;
+        }
+        return fileMeta.getVersion() + "/" + (null == fileMeta.getMd5Checksum() ? "" : fileMeta.getMd5Checksum());
+    }
+
+    private String cachedVersion(DistributedMapCacheClient cache, String fileId) {
+        try {
+            return cache.get(CACHE_KEY_PREFIX + fileId, STRING_SERIALIZER, STRING_DESERIALIZER);
+        } catch (IOException e) { // (just download then)
+            getLogger().warn("Failed to look up last fetched version of {} due to {}", new Object[] {fileId, e}, e);
+            return null;
+        }
+    }
+
+    private void rememberVersion(DistributedMapCacheClient cache, String fileId, String versionToken) {
+        try {
+            cache.put(CACHE_KEY_PREFIX + fileId, versionToken, STRING_SERIALIZER, STRING_SERIALIZER);
+        } catch (IOException e) { // (content is fetched - just might be fetched again next time)
+            getLogger().warn("Failed to remember fetched version of {} due to {}", new Object[] {fileId, e}, e);
+        }
+    }
+
+    /**
+     * Downloads at most maxBytes (null: up to the end) from start with a single Range request
+     *
+     * @param size the size of the file if known (nothing is requested when starting beyond it)
+     * @return the number of bytes written
+     */
+    static long downloadPartial(Drive.Files.Get mediaGet, Long size, long start, Long maxBytes, OutputStream contentStream) throws IOException {
+        if ((null != maxBytes && maxBytes <= 0) || (null != size && start >= size)) {
+            return 0L;
+        }
+        mediaGet.getRequestHeaders().setRange("bytes=" + start + "-" + (null == maxBytes ? "" : String.valueOf(start + maxBytes - 1)));
+        final HttpResponse response;
+        try {
+            response = mediaGet.executeMedia();
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() == 416) { // (start beyond the end)
+                return 0L;
+            }
+            throw e;
+        }
+        try (InputStream mediaStream = response.getContent()) {
+            if (null == mediaStream) {
+                return 0L;
+            }
+            // (the whole file if the range was ignored - so skip to start and stop after maxBytes regardless)
+            return IOUtils.copyLarge(mediaStream, contentStream, response.getStatusCode() == 206 ? 0L : start, null == maxBytes ? -1L : maxBytes);
+        }
+    }
+
+    /**
+     * @return true if not set or empty after evaluation (e.g. the attribute referenced is missing)
+     */
+    private static boolean isEmpty(PropertyValue value) {
+        return null == value.getValue() || value.getValue().trim().isEmpty();
+    }
+
+    static Map<String, String> rangeAttributes(Long size, long start, long bytesFetched) {
+        final Map<String, String> attributes = new HashMap<>();
+        if (null != size) {
+            attributes.put("file.size", String.valueOf(size));
+        }
+        attributes.put("range.start", String.valueOf(start));
+        if (bytesFetched > 0) {
+            attributes.put("range.end", String.valueOf(start + bytesFetched - 1));
+        }
+        attributes.put("range.length", String.valueOf(bytesFetched));
+        return attributes;
+    }
+
+    /**
+     * Downloads the file in ranges of downloadChunkSize and writes them in order. A range is only requested with a permit, so at most
+     * downloadConcurrency ranges are held in memory by all tasks together. Waits for a permit only with no range pending itself (otherwise
+     * writes its oldest range first) - so tasks never wait for each other while holding permits
+     */
+    void downloadRanges(Drive service, String fileId, long size, OutputStream contentStream) throws IOException {
+        final Semaphore permits = downloadPermits;
+        final Deque<Future<byte[]>> pendingRanges = new ArrayDeque<>();
+        long nextStart = 0;
+        try {
+            while (nextStart < size || !pendingRanges.isEmpty()) {
+                while (nextStart < size && (pendingRanges.isEmpty() ? acquire(permits) : permits.tryAcquire())) {
+                    final long start = nextStart;
+                    final long end = Math.min(size, start + downloadChunkSize) - 1;
+                    try {
+                        pendingRanges.add(downloadExecutor.submit(() -> downloadRange(service, fileId, start, end)));
+                    } catch (RuntimeException e) {
+                        permits.release();
+                        throw e;
+                    }
+                    nextStart = end + 1;
+                }
+                final Future<byte[]> range = pendingRanges.poll();
+                try {
+                    contentStream.write(range.get());
+                } finally {
+                    permits.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + fileId, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to download range of " + fileId, e.getCause());
+        } finally {
+            pendingRanges.forEach(pendingRange -> pendingRange.cancel(true));
+            permits.release(pendingRanges.size());
+        }
+    }
+
+    private static boolean acquire(Semaphore permits) throws InterruptedException {
+        permits.acquire();
+        return true;
+    }
+
+    private byte[] downloadRange(Drive service, String fileId, long start, long end) throws IOException {
+        getLogger().trace("Downloading bytes {}-{} of {}", new Object[] {start, end, fileId});
+        final Drive.Files.Get rangeGet = service.files().get(fileId);
+        rangeGet.getRequestHeaders().setRange("bytes=" + start + "-" + end);
+        final int length = (int) (end - start + 1);
+        final ByteArrayOutputStream rangeContent = new ByteArrayOutputStream(length);
+        timed("media range", () -> {
+            try (InputStream mediaStream = rangeGet.executeMediaAsInputStream()) {
+                return IOUtils.copy(mediaStream, rangeContent);
+            }
+        });
+        if (rangeContent.size() != length) {
+            throw new IOException("Expected " + length + " bytes for range " + start + "-" + end + " of " + fileId + " but got " + rangeContent.size());
         }
+        return rangeContent.toByteArray();
     }
 }
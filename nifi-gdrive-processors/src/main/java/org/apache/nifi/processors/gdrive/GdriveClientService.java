@@ -0,0 +1,16 @@
+package org.apache.nifi.processors.gdrive;
+
+import com.google.api.services.drive.Drive;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+
+@Tags({"Google", "GDrive", "Client", "Credentials"})
+@CapabilityDescription("Provides a long-lived GDrive client (incl. authentication) that can be shared by all GDrive processors")
+public interface GdriveClientService extends ControllerService {
+
+    /**
+     * @return the (shared, thread-safe) Drive client - never build a new one per FlowFile
+     */
+    Drive getDrive();
+}
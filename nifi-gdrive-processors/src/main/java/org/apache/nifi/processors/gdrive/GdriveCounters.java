@@ -0,0 +1,33 @@
+package org.apache.nifi.processors.gdrive;
+
+import org.apache.nifi.processor.ProcessSession;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counter adjustments collected from any thread (the session may only be used by the thread of onTrigger) -
+ * added to the session's counters when drained there.
+ */
+class GdriveCounters {
+
+    private final ConcurrentMap<String, AtomicLong> deltas = new ConcurrentHashMap<>();
+
+    void adjust(String name, long delta) {
+        deltas.computeIfAbsent(name, key -> new AtomicLong()).addAndGet(delta);
+    }
+
+    /**
+     * Adds all adjustments since the last call to the session's counters
+     */
+    void drainTo(ProcessSession session) {
+        for (Map.Entry<String, AtomicLong> delta : deltas.entrySet()) {
+            final long value = delta.getValue().getAndSet(0);
+            if (value != 0) {
+                session.adjustCounter(delta.getKey(), value, false);
+            }
+        }
+    }
+}
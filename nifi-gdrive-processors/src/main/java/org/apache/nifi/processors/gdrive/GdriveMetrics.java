@@ -0,0 +1,116 @@
+package org.apache.nifi.processors.gdrive;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of the GDrive calls of one processor, by kind of call. Thread-safe and of fixed size per kind,
+ * so it can be fed from listing / download threads (which must not touch the session and its counters).
+ */
+public class GdriveMetrics {
+
+    private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    void recordLatency(String call, long nanos) {
+        latencies.computeIfAbsent(call, key -> new LatencyHistogram()).record(nanos);
+    }
+
+    /**
+     * @return the histogram of the given kind of call or null if there was no such call
+     */
+    public LatencyHistogram getLatency(String call) {
+        return latencies.get(call);
+    }
+
+    /**
+     * @return all histograms by kind of call (sorted)
+     */
+    public Map<String, LatencyHistogram> getLatencies() {
+        return new TreeMap<>(latencies);
+    }
+
+    void clear() {
+        latencies.clear();
+    }
+
+    /**
+     * @return one line per kind of call with count and percentiles - for logging
+     */
+    String summary() {
+        final StringBuilder summary = new StringBuilder();
+        getLatencies().forEach((call, histogram) -> summary.append(String.format("%n%s: count=%d, p50=%.1f ms, p95=%.1f ms, p99=%.1f ms, max=%.1f ms",
+                call, histogram.getCount(), histogram.getPercentileMillis(50), histogram.getPercentileMillis(95),
+                histogram.getPercentileMillis(99), histogram.getMaxMillis())));
+        return summary.toString();
+    }
+
+    /**
+     * Histogram with buckets growing by 25% each (from 10 micros up to many hours) - percentiles are accurate to that
+     */
+    public static class LatencyHistogram {
+        static final double SMALLEST_BUCKET_MICROS = 10;
+        static final double BUCKET_GROWTH = 1.25;
+        static final int BUCKET_COUNT = 100;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            buckets.incrementAndGet(bucketOf(nanos));
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        static int bucketOf(long nanos) {
+            final double micros = nanos / 1000.0;
+            if (micros <= SMALLEST_BUCKET_MICROS) {
+                return 0;
+            }
+            return (int) Math.min(BUCKET_COUNT - 1, Math.ceil(Math.log(micros / SMALLEST_BUCKET_MICROS) / Math.log(BUCKET_GROWTH)));
+        }
+
+        static double upperBoundMillis(int bucket) {
+            return SMALLEST_BUCKET_MICROS * Math.pow(BUCKET_GROWTH, bucket) / 1000.0;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getMeanMillis() {
+            final long calls = count.get();
+            return 0 == calls ? 0 : totalNanos.get() / (double) calls / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        /**
+         * @return the latency (upper bound of its bucket, at most the max) below which the given percentage of calls finished
+         */
+        public double getPercentileMillis(double percentile) {
+            final long calls = count.get();
+            if (0 == calls) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(calls * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBoundMillis(i), getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+    }
+}
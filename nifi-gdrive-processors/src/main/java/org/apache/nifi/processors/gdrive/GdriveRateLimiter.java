@@ -0,0 +1,259 @@
+package org.apache.nifi.processors.gdrive;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Sleeper;
+import com.google.api.client.util.StringUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket shared by all GDrive clients of one IAM user (service account) - the Drive quota is per user, not per processor.
+ * A rate limit response (429 or 403 with reason (user)rateLimitExceeded) pauses all requests of the user for an exponentially
+ * growing time with jitter, so processors stop bursting into the quota and yielding one after the other.
+ * <p>
+ * Throttling is counted for the processor whose call waited (see {@link #countFor(GdriveCounters)}) - not for whichever
+ * processor of the IAM user reports next.
+ */
+class GdriveRateLimiter {
+
+    static final double DEFAULT_REQUESTS_PER_SECOND = 100;
+    static final long INITIAL_BACKOFF_MILLIS = 1000;
+    static final long MAX_BACKOFF_MILLIS = 64000;
+
+    static final String COUNTER_THROTTLED = "GDrive throttled requests";
+    static final String COUNTER_WAIT_MILLIS = "GDrive throttle wait (ms)";
+    static final String COUNTER_RATE_LIMITED = "GDrive rate limit responses";
+
+    private static final ConcurrentMap<String, GdriveRateLimiter> limiters = new ConcurrentHashMap<>();
+
+    // counters of the processor whose GDrive call the current thread executes (set around the call)
+    private static final ThreadLocal<GdriveCounters> callerCounters = new ThreadLocal<>();
+
+    private final Sleeper sleeper;
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+
+    private double requestsPerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+    private long pausedUntilNanos;
+    private volatile long backoffMillis;
+
+    GdriveRateLimiter(double requestsPerSecond) {
+        this(requestsPerSecond, Sleeper.DEFAULT);
+    }
+
+    /**
+     * @param sleeper waits for tokens and rate limit pauses (tests pass one returning right away)
+     */
+    GdriveRateLimiter(double requestsPerSecond, Sleeper sleeper) {
+        this.sleeper = sleeper;
+        this.requestsPerSecond = requestsPerSecond;
+        this.tokens = burstSize();
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the limiter of the given IAM user (created with the default rate on first use)
+     */
+    static GdriveRateLimiter forAccount(String serviceAccountId) {
+        return limiters.computeIfAbsent(null == serviceAccountId ? "" : serviceAccountId, account -> new GdriveRateLimiter(DEFAULT_REQUESTS_PER_SECOND));
+    }
+
+    /**
+     * Counts the throttling of the current thread's requests for the given processor's counters until reset
+     *
+     * @return the counters counted for before (to be restored after the call)
+     */
+    static GdriveCounters countFor(GdriveCounters counters) {
+        final GdriveCounters previous = callerCounters.get();
+        if (null == counters) {
+            callerCounters.remove();
+        } else {
+            callerCounters.set(counters);
+        }
+        return previous;
+    }
+
+    synchronized void setRequestsPerSecond(double requestsPerSecond) {
+        refill(System.nanoTime());
+        this.requestsPerSecond = requestsPerSecond;
+        this.tokens = Math.min(tokens, burstSize());
+    }
+
+    /**
+     * Blocks until the request may be sent
+     */
+    void acquire() throws InterruptedIOException {
+        final long waitForNanos = reserve();
+        if (waitForNanos <= 0) {
+            return;
+        }
+        // (rounded up - waking up early would only mean waiting again)
+        final long waitForMillis = TimeUnit.NANOSECONDS.toMillis(waitForNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+        throttled.incrementAndGet();
+        waitNanos.addAndGet(waitForNanos);
+        final GdriveCounters counters = callerCounters.get();
+        if (null != counters) {
+            counters.adjust(COUNTER_THROTTLED, 1);
+            counters.adjust(COUNTER_WAIT_MILLIS, waitForMillis);
+        }
+        try {
+            sleeper.sleep(waitForMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for GDrive rate limit");
+        }
+    }
+
+    /**
+     * @return how long to wait before sending (the token is taken regardless - i.e. may go into debt)
+     */
+    synchronized long reserve() {
+        final long now = System.nanoTime();
+        refill(now);
+        tokens -= 1;
+        final long waitForTokenNanos = tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+        return Math.max(waitForTokenNanos, pausedUntilNanos - now);
+    }
+
+    synchronized void onRateLimited() {
+        rateLimited.incrementAndGet();
+        final GdriveCounters counters = callerCounters.get();
+        if (null != counters) {
+            counters.adjust(COUNTER_RATE_LIMITED, 1);
+        }
+        backoffMillis = 0 == backoffMillis ? INITIAL_BACKOFF_MILLIS : Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        // (jitter: 50% - 150% so the paused requests do not all come back at once)
+        final long pauseNanos = (long) (TimeUnit.MILLISECONDS.toNanos(backoffMillis) * (0.5 + ThreadLocalRandom.current().nextDouble()));
+        pausedUntilNanos = Math.max(pausedUntilNanos, System.nanoTime() + pauseNanos);
+    }
+
+    void onSuccess() {
+        if (0 != backoffMillis) {
+            synchronized (this) {
+                backoffMillis = 0;
+            }
+        }
+    }
+
+    long getThrottledRequests() {
+        return throttled.get();
+    }
+
+    long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    long getRateLimitedResponses() {
+        return rateLimited.get();
+    }
+
+    private double burstSize() {
+        return Math.max(1, requestsPerSecond);
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burstSize(), tokens + (now - lastRefillNanos) * requestsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+    }
+
+    /**
+     * @return whether GDrive reported the error for exceeding the rate limit (e.g. for a part of a batch request)
+     */
+    static boolean isRateLimited(GoogleJsonError error) {
+        return 429 == error.getCode() || (403 == error.getCode() && isRateLimitReason(error));
+    }
+
+    static boolean isRateLimitReason(GoogleJsonError details) {
+        if (null == details || null == details.getErrors()) {
+            return false;
+        }
+        for (GoogleJsonError.ErrorInfo error : details.getErrors()) {
+            if ("rateLimitExceeded".equals(error.getReason()) || "userRateLimitExceeded".equals(error.getReason())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets up a request (after the credential did) to take a token before it is sent - incl. retries, media and batch parts,
+     * which count against the quota as well - and to be retried after the pause when it was rate limited
+     */
+    void initialize(HttpRequest request) {
+        final HttpExecuteInterceptor interceptor = request.getInterceptor();
+        request.setInterceptor(sending -> {
+            acquire();
+            if (null != interceptor) {
+                interceptor.intercept(sending);
+            }
+        });
+        final HttpUnsuccessfulResponseHandler handler = request.getUnsuccessfulResponseHandler();
+        request.setUnsuccessfulResponseHandler((failed, response, supportsRetry) ->
+                (null != handler && handler.handleResponse(failed, response, supportsRetry)) || handleRateLimited(failed, response, supportsRetry));
+        request.setResponseInterceptor(response -> {
+            if (response.isSuccessStatusCode()) {
+                onSuccess();
+            }
+        });
+    }
+
+    /**
+     * @return whether to retry the request (the pause before is taken by {@link #acquire()})
+     */
+    private boolean handleRateLimited(HttpRequest request, HttpResponse response, boolean supportsRetry) throws IOException {
+        // (batch parts are left to the batch callback - it parses them and reports rate limits once per batch)
+        if (request != response.getRequest()) {
+            return false;
+        }
+        if (429 == response.getStatusCode()) {
+            onRateLimited();
+            return supportsRetry;
+        }
+        if (403 != response.getStatusCode()) {
+            return false;
+        }
+        final String content = response.parseAsString();
+        final GoogleJsonError details = parseError(content);
+        if (isRateLimitReason(details)) {
+            onRateLimited();
+            if (supportsRetry) {
+                return true;
+            }
+        }
+        // (the body is consumed now - fail just like the client would have)
+        final StringBuilder message = HttpResponseException.computeMessageBuffer(response);
+        if (!content.isEmpty()) {
+            message.append(StringUtils.LINE_SEPARATOR).append(content);
+        }
+        throw new GoogleJsonResponseException(new HttpResponseException.Builder(response.getStatusCode(), response.getStatusMessage(), response.getHeaders())
+                .setContent(content).setMessage(message.toString()), details);
+    }
+
+    private static GoogleJsonError parseError(String content) {
+        if (content.isEmpty()) {
+            return null;
+        }
+        try {
+            return JacksonFactory.getDefaultInstance().fromString(content, GoogleJsonErrorContainer.class).getError();
+        } catch (IOException | IllegalArgumentException e) { // (not a GDrive error then)
+            return null;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.apache.nifi.processors.gdrive;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import org.apache.nifi.annotation.behavior.*;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.util.*;
+
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"Google", "GDrive", "Metadata", "Attributes"})
+@CapabilityDescription("Retrieves the metadata (but not the contents) of files in GDrive and writes it to the attributes of the FlowFiles. "
+        + "The requests for many FlowFiles are sent together as one batch request, so enriching a large number of file ids "
+        + "needs only a fraction of the HTTP round trips of FetchGdrive. FlowFiles whose request was rate limited or hit a server error "
+        + "are penalized and stay in the incoming queue to be tried again - a rate limited batch also pauses all requests of the IAM user")
+@SeeAlso({FetchGdrive.class, ListGdrive.class})
+@WritesAttributes({
+        @WritesAttribute(attribute = "filename", description = "The name of the file"),
+        @WritesAttribute(attribute = "fileid", description = "The id of the file = the id given"),
+        @WritesAttribute(attribute = "created", description = "The created date of the file"),
+        @WritesAttribute(attribute = "modified", description = "The modified date of the file"),
+        @WritesAttribute(attribute = "mime.type", description = "The mime type of the file"),
+        @WritesAttribute(attribute = "error.code", description = "The HTTP status code if GDrive reported an error for the file"),
+        @WritesAttribute(attribute = "error.message", description = "The message if GDrive reported an error for the file")
+})
+public class GetGdriveMetadata extends AbstractGdriveProcessor {
+
+    // (GDrive does not accept more calls per batch request)
+    static final int MAX_BATCH_SIZE = 100;
+
+    public static final PropertyDescriptor FILE = new PropertyDescriptor.Builder()
+            .fromPropertyDescriptor(FetchGdrive.FILE)
+            .build();
+
+    static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("Batch Size")
+            .displayName("Batch Size")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Maximum number of FlowFiles whose metadata is requested in one batch request (at most " + MAX_BATCH_SIZE + ")")
+            .required(true)
+            .addValidator(StandardValidators.createLongValidator(1, MAX_BATCH_SIZE, true))
+            .defaultValue(String.valueOf(MAX_BATCH_SIZE))
+            .build();
+
+    public static final List<PropertyDescriptor> properties = Collections.unmodifiableList(Arrays.asList(
+        IAM_USER_JSON, GDRIVE_CLIENT_SERVICE, FILE, BATCH_SIZE));
+
+    public static final Set<Relationship> relationships = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList(REL_SUCCESS, REL_FAILURE)));
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return properties;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+        final File[] results = new File[flowFiles.size()];
+        final GoogleJsonError[] errors = new GoogleJsonError[flowFiles.size()];
+        try {
+            final Drive service = createDriveService(context);
+            final GdriveRateLimiter rateLimiter = StandardGdriveClientService.rateLimiterOf(service);
+            final BatchRequest batch = service.batch();
+            batch.setBatchUrl(new GenericUrl(service.getRootUrl() + Drive.DEFAULT_BATCH_PATH));
+            final boolean[] rateLimited = new boolean[1]; // (callbacks run one after the other on the calling thread)
+            for (int i = 0; i < flowFiles.size(); i++) {
+                final int index = i;
+                service.files()
+                        .get(context.getProperty(FILE).evaluateAttributeExpressions(flowFiles.get(i)).getValue())
+                        .setFields("id, name, mimeType, createdTime, modifiedTime")
+                        .queue(batch, new JsonBatchCallback<File>() {
+                            @Override
+                            public void onSuccess(File fileMeta, HttpHeaders responseHeaders) {
+                                results[index] = fileMeta;
+                            }
+
+                            @Override
+                            public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                                errors[index] = error;
+                                if (null != rateLimiter && !rateLimited[0] && GdriveRateLimiter.isRateLimited(error)) {
+                                    rateLimited[0] = true;
+                                    rateLimiter.onRateLimited(); // (one round trip - backs off once however many parts were limited)
+                                }
+                            }
+                        });
+            }
+            getLogger().trace("Requesting metadata of {} files", new Object[] {flowFiles.size()});
+            timed("metadata batch", () -> {
+                batch.execute();
+                return null;
+            });
+            session.adjustCounter("GDrive metadata batch requests", 1, false);
+            session.adjustCounter("GDrive metadata requests", flowFiles.size(), false);
+        } catch (final Exception e) {
+            getLogger().error("Failed to get metadata due to {}", new Object[] {e}, e);
+            session.transfer(flowFiles, REL_FAILURE);
+            session.commit();
+            context.yield();
+            return;
+        }
+        for (int i = 0; i < flowFiles.size(); i++) {
+            FlowFile flowFile = flowFiles.get(i);
+            if (null != results[i]) {
+                flowFile = session.putAllAttributes(flowFile, fileAttributes(results[i]));
+                session.transfer(flowFile, REL_SUCCESS);
+            } else if (null != errors[i] && isTransient(errors[i])) {
+                getLogger().debug("Getting metadata for {} failed with {} - trying again later", new Object[] {flowFile, errors[i].getCode()});
+                session.adjustCounter("GDrive metadata requests requeued", 1, false);
+                session.transfer(session.penalize(flowFile)); // (back to the incoming queue)
+            } else {
+                final Map<String, String> errorAttributes = new HashMap<>();
+                if (null != errors[i]) {
+                    errorAttributes.put("error.code", String.valueOf(errors[i].getCode()));
+                    errorAttributes.put("error.message", errors[i].getMessage());
+                }
+                getLogger().error("Failed to get metadata for {} due to {}", new Object[] {flowFile, errorAttributes.get("error.message")});
+                flowFile = session.putAllAttributes(flowFile, errorAttributes);
+                session.transfer(flowFile, REL_FAILURE);
+            }
+        }
+        reportThrottling(session);
+        session.commit();
+    }
+
+    /**
+     * @return true for errors worth retrying (rate limits and server errors) as opposed to errors of the file itself (e.g. not found)
+     */
+    static boolean isTransient(GoogleJsonError error) {
+        return GdriveRateLimiter.isRateLimited(error) || error.getCode() >= 500;
+    }
+}
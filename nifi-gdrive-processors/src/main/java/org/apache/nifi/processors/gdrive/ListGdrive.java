@@ -1,39 +1,72 @@
 package org.apache.nifi.processors.gdrive;
 
+import com.google.api.client.util.DateTime;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 
 import org.apache.nifi.annotation.behavior.*;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.components.state.StateMap;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 @PrimaryNodeOnly
 @TriggerSerially
 @TriggerWhenEmpty
 @InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
 @Tags({"Google", "GDrive", "List"})
-@CapabilityDescription("Retrieves a listing of objects from a folder in GDrive. For each object that is listed, creates a FlowFile that represents "
+@CapabilityDescription("Retrieves a listing of objects from a folder in GDrive. For each object that is listed, creates a FlowFile (or, with a Record Writer, a record) that represents "
         + "the object so that it can be fetched in conjunction with FetchGDrive. This Processor is designed to run on Primary Node only "
         + "in a cluster. If the primary node changes, the new Primary Node will pick up where the previous node left off without duplicating "
         + "all of the data.")
-@Stateful(scopes = Scope.CLUSTER, description = "After performing a listing of keys, the timestamp of the newest key is stored, "
+@Stateful(scopes = {Scope.CLUSTER, Scope.LOCAL}, description = "After performing a listing of keys, the timestamp of the newest key is stored, "
         + "along with the keys that share that same timestamp. This allows the Processor to list only keys that have been added or modified after "
         + "this date the next time that the Processor is run. State is stored across the cluster so that this Processor can be run on Primary Node only and if a new Primary "
-        + "Node is selected, the new node can pick up where the previous node left off, without duplicating the data.")
+        + "Node is selected, the new node can pick up where the previous node left off, without duplicating the data. "
+        + "With the Changes listing strategy, the page token of the GDrive Changes API is stored as well. "
+        + "While a listing (without Record Writer) is running, the folders and pages still to be listed are checkpointed in local state with every batch, "
+        + "so a listing that is interrupted continues where it stopped on the next run (on the same node). A listing exceeding Max Pending Folder Pages "
+        + "is checkpointed the same way (with Record Writer as well) and continues on the next run.")
 @WritesAttributes({
         @WritesAttribute(attribute = "filename", description = "The name of the file"),
         @WritesAttribute(attribute = "fileid", description = "The id of the file"),
@@ -43,7 +76,9 @@ import java.util.*;
         @WritesAttribute(attribute = "is.folder", description = "True if this file is a folder"),
         @WritesAttribute(attribute = "file.path", description = "The path to the file (below folder to be listed)"),
         @WritesAttribute(attribute = "parent.folder", description = "The common parent folder id = the folder to be listed"),
-        @WritesAttribute(attribute = "file.parent.folder", description = "The immediate parent folder id")
+        @WritesAttribute(attribute = "file.parent.folder", description = "The immediate parent folder id"),
+        @WritesAttribute(attribute = "file.<field>", description = "The value of each of the Additional Fields requested (e.g. file.size)"),
+        @WritesAttribute(attribute = "record.count", description = "When using a Record Writer: the number of files listed into the FlowFile")
 })
 public class ListGdrive extends AbstractGdriveProcessor {
 
@@ -90,15 +125,150 @@ public class ListGdrive extends AbstractGdriveProcessor {
             .allowableValues("true", "false")
             .build();
 
+    public static final AllowableValue STRATEGY_TRAVERSAL = new AllowableValue("traversal", "Folder Traversal",
+            "Pages through all files of the folder (and subfolders) on every run and picks those modified since the last run");
+    public static final AllowableValue STRATEGY_CHANGES = new AllowableValue("changes", "Changes",
+            "Lists the folder once, then only asks GDrive for the changes since the last run (Changes API) and picks those within the folder. "
+                    + "The cost of a run depends on the number of changes rather than the size of the folder");
+    public static final AllowableValue STRATEGY_FLAT = new AllowableValue("flat", "Flat Drive Listing",
+            "Pages through all folders, then all other files of the drive (the Shared Drive, or everything visible to the IAM user) in pages of "
+                    + "1000 instead of listing folder by folder, and rebuilds the paths from the folders held in memory. Needs far fewer requests "
+                    + "for trees with many folders, but lists (and discards) files outside the folder as well. Only with Search Recursively");
+
+    public static final PropertyDescriptor LISTING_STRATEGY = new PropertyDescriptor.Builder()
+            .name("Listing Strategy")
+            .displayName("Listing Strategy")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("How to find new and modified files")
+            .required(true)
+            .allowableValues(STRATEGY_TRAVERSAL, STRATEGY_CHANGES, STRATEGY_FLAT)
+            .defaultValue(STRATEGY_TRAVERSAL.getValue())
+            .build();
+
+    public static final PropertyDescriptor SHARED_DRIVE = new PropertyDescriptor.Builder()
+            .name("Shared Drive")
+            .displayName("Shared Drive")
+            .description("ID of the shared drive (team drive) the folder is in - leave empty for folders in My Drive or shared with the IAM user")
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor LISTING_THREADS = new PropertyDescriptor.Builder()
+            .name("Listing Threads")
+            .displayName("Listing Threads")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Number of folder pages pulled from GDrive in parallel when searching recursively. "
+                    + "Higher values speed up listing wide folder trees as sibling folders are listed at the same time")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+
+    public static final PropertyDescriptor MAX_PENDING_PAGES = new PropertyDescriptor.Builder()
+            .name("Max Pending Folder Pages")
+            .displayName("Max Pending Folder Pages")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Maximum number of folders (and folder pages) found but not listed yet when searching recursively - they are kept in memory "
+                    + "and in local state. The pending folders grow with depth x Listing Batch Size; a listing exceeding the maximum emits what it listed "
+                    + "so far, yields and continues on the next run with the pending folders (the deepest first, so they drain). For very deep and wide trees, "
+                    + "use a smaller Listing Batch Size or the " + STRATEGY_FLAT.getDisplayName() + " strategy")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10000")
+            .build();
+
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
+            .name("Record Writer")
+            .displayName("Record Writer")
+            .description("Specifies the Record Writer to use for creating the listing. If not specified, one FlowFile will be created for each entity that is listed. "
+                    + "If the Record Writer is specified, all entities listed in a run will be written to a single FlowFile instead of adding attributes to individual FlowFiles.")
+            .required(false)
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .build();
+
+    public static final PropertyDescriptor NAME_FILTER = new PropertyDescriptor.Builder()
+            .name("Name Filter")
+            .displayName("Name Filter")
+            .description("Only list files with a word in their name starting with this text, ignoring case (as GDrive's name contains). "
+                    + "Subfolders are still searched when searching recursively")
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MIME_TYPE_FILTER = new PropertyDescriptor.Builder()
+            .name("MIME Type Filter")
+            .displayName("MIME Type Filter")
+            .description("Only list files of exactly this mime type. Subfolders are still searched when searching recursively")
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INCLUDE_TRASHED = new PropertyDescriptor.Builder()
+            .name("Include Trashed")
+            .displayName("Include Trashed")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Whether to list files that have been moved to the trash")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .build();
+
+    public static final PropertyDescriptor ADDITIONAL_FIELDS = new PropertyDescriptor.Builder()
+            .name("Additional Fields")
+            .displayName("Additional Fields")
+            .description("Comma-separated list of further GDrive file fields to request (e.g. size, md5Checksum). Each is written as attribute "
+                    + "file.<field> (with a Record Writer: as optional string field file<Field>, e.g. fileSize) - only fields needed downstream "
+                    + "should be requested, as every field adds to the listing's payload")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .required(false)
+            .addValidator(StandardValidators.createRegexMatchingValidator(Pattern.compile("\\s*[A-Za-z][A-Za-z0-9]*\\s*(,\\s*[A-Za-z][A-Za-z0-9]*\\s*)*")))
+            .build();
+
     public static final List<PropertyDescriptor> properties = Collections.unmodifiableList(Arrays.asList(
-        IAM_USER_JSON, FOLDER, BATCH_SIZE, FROM_BEGINNING, RECURSIVE_SEARCH));
+        IAM_USER_JSON, GDRIVE_CLIENT_SERVICE, FOLDER, SHARED_DRIVE, BATCH_SIZE, FROM_BEGINNING, RECURSIVE_SEARCH, LISTING_STRATEGY, LISTING_THREADS, MAX_PENDING_PAGES, RECORD_WRITER,
+        NAME_FILTER, MIME_TYPE_FILTER, INCLUDE_TRASHED, ADDITIONAL_FIELDS));
+
+    static final String FILE_FIELDS = "id, name, mimeType, createdTime, modifiedTime, trashed";
+
+    static final RecordSchema RECORD_SCHEMA = new SimpleRecordSchema(Arrays.asList(
+            new RecordField("filename", RecordFieldType.STRING.getDataType(), false),
+            new RecordField("fileid", RecordFieldType.STRING.getDataType(), false),
+            new RecordField("created", RecordFieldType.TIMESTAMP.getDataType(), true),
+            new RecordField("modified", RecordFieldType.TIMESTAMP.getDataType(), false),
+            new RecordField("mimeType", RecordFieldType.STRING.getDataType(), true),
+            new RecordField("isFolder", RecordFieldType.BOOLEAN.getDataType(), false),
+            new RecordField("filePath", RecordFieldType.STRING.getDataType(), false),
+            new RecordField("parentFolder", RecordFieldType.STRING.getDataType(), false),
+            new RecordField("fileParentFolder", RecordFieldType.STRING.getDataType(), false)));
 
     public static final Set<Relationship> relationships = Collections.singleton(REL_SUCCESS);
 
     public static final String CURRENT_TIMESTAMP = "currentTimestamp";
+    public static final String CHANGES_PAGE_TOKEN = "changesPageToken";
+    static final String CHECKPOINT_PREFIX = "checkpoint.";
+
+    static final int MAX_FOLDER_DEPTH = 100;
+
+    // (maximum GDrive accepts)
+    static final int FLAT_PAGE_SIZE = 1000;
 
     // State tracking
     private volatile long currentTimestamp = 0L;
+    private volatile String changesPageToken = null;
+
+    private volatile ExecutorService listingExecutor;
+    private volatile int listingThreads;
+    private volatile int maxPendingPages;
+
+    private volatile String sharedDriveId;
+    private volatile String nameFilter;
+    private volatile String mimeTypeFilter;
+    private volatile boolean includeTrashed;
+    private volatile List<String> additionalFields;
+    private volatile RecordSchema recordSchema = RECORD_SCHEMA;
 
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
@@ -110,6 +280,77 @@ public class ListGdrive extends AbstractGdriveProcessor {
         return relationships;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        if (STRATEGY_FLAT.getValue().equals(validationContext.getProperty(LISTING_STRATEGY).getValue())
+                && !validationContext.getProperty(RECURSIVE_SEARCH).asBoolean()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(LISTING_STRATEGY.getDisplayName())
+                    .valid(false)
+                    .explanation(STRATEGY_FLAT.getDisplayName() + " requires " + RECURSIVE_SEARCH.getDisplayName() + " = true")
+                    .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void createListingExecutor(ProcessContext context) {
+        listingThreads = context.getProperty(LISTING_THREADS).asInteger();
+        maxPendingPages = context.getProperty(MAX_PENDING_PAGES).asInteger();
+        final AtomicInteger threadCount = new AtomicInteger();
+        listingExecutor = Executors.newFixedThreadPool(listingThreads, r -> {
+            final Thread thread = new Thread(r, "ListGdrive " + getIdentifier() + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @OnScheduled
+    public void setupFilters(ProcessContext context) {
+        sharedDriveId = context.getProperty(SHARED_DRIVE).evaluateAttributeExpressions().getValue();
+        nameFilter = context.getProperty(NAME_FILTER).evaluateAttributeExpressions().getValue();
+        mimeTypeFilter = context.getProperty(MIME_TYPE_FILTER).evaluateAttributeExpressions().getValue();
+        includeTrashed = context.getProperty(INCLUDE_TRASHED).asBoolean();
+        final List<String> fields = new ArrayList<>();
+        if (context.getProperty(ADDITIONAL_FIELDS).isSet()) {
+            for (String field : context.getProperty(ADDITIONAL_FIELDS).getValue().split(",")) {
+                fields.add(field.trim());
+            }
+        }
+        additionalFields = fields;
+        recordSchema = recordSchema(fields);
+    }
+
+    /**
+     * @return the schema of the record listing - the fixed fields plus one optional string field per additional field
+     */
+    static RecordSchema recordSchema(List<String> additionalFields) {
+        if (additionalFields.isEmpty()) {
+            return RECORD_SCHEMA;
+        }
+        final List<RecordField> fields = new ArrayList<>(RECORD_SCHEMA.getFields());
+        for (String field : additionalFields) {
+            fields.add(new RecordField(recordFieldName(field), RecordFieldType.STRING.getDataType(), true));
+        }
+        return new SimpleRecordSchema(fields);
+    }
+
+    /**
+     * @return the record field of an additional field (size: fileSize - like the attribute file.size)
+     */
+    static String recordFieldName(String field) {
+        return "file" + Character.toUpperCase(field.charAt(0)) + field.substring(1);
+    }
+
+    @OnStopped
+    public void shutdownListingExecutor() {
+        if (null != listingExecutor) {
+            listingExecutor.shutdownNow();
+            listingExecutor = null;
+        }
+    }
+
     private void restoreState(final ProcessSession session) throws IOException {
         final StateMap stateMap = session.getState(Scope.CLUSTER);
         if (stateMap.getVersion() == -1L || stateMap.get(CURRENT_TIMESTAMP) == null) {
@@ -117,11 +358,15 @@ public class ListGdrive extends AbstractGdriveProcessor {
         } else {
             currentTimestamp = Long.parseLong(stateMap.get(CURRENT_TIMESTAMP));
         }
+        changesPageToken = stateMap.getVersion() == -1L ? null : stateMap.get(CHANGES_PAGE_TOKEN);
     }
 
     private void persistState(final ProcessSession session) {
         final Map<String, String> state = new HashMap<>();
         state.put(CURRENT_TIMESTAMP, String.valueOf(currentTimestamp));
+        if (null != changesPageToken) {
+            state.put(CHANGES_PAGE_TOKEN, changesPageToken);
+        }
         try {
             session.setState(state, Scope.CLUSTER);
         } catch (IOException ioe) {
@@ -140,72 +385,681 @@ public class ListGdrive extends AbstractGdriveProcessor {
         }
         final boolean fromBeginning = context.getProperty(FROM_BEGINNING).asBoolean();
         long timestampPrevRun = this.currentTimestamp; // (from last run - or zero)
+        final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+        final RecordListing recordListing = null == writerFactory ? null : new RecordListing(session, writerFactory);
+        boolean complete = true;
         try {
+            // (with a Record Writer, only a listing exceeding Max Pending Folder Pages is checkpointed - everything else is committed at the end)
+            final CrawlCheckpoint checkpoint = CrawlCheckpoint.fromState(session.getState(Scope.LOCAL).toMap());
             final Drive service = createDriveService(context);
             getLogger().trace("Service created - start listing");
             final String rootFolderId = context.getProperty(FOLDER).evaluateAttributeExpressions().getValue();
-            performListing(session, service, rootFolderId, rootFolderId, "", fromBeginning, context.getProperty(RECURSIVE_SEARCH).asBoolean(), context.getProperty(BATCH_SIZE).asInteger(), timestampPrevRun);
+            final boolean recursive = context.getProperty(RECURSIVE_SEARCH).asBoolean();
+            final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+            if (STRATEGY_CHANGES.getValue().equals(context.getProperty(LISTING_STRATEGY).getValue())) {
+                if (fromBeginning || null == changesPageToken) {
+                    // (take the token before listing so no change during the listing is lost)
+                    final String startPageToken = null != checkpoint && null != checkpoint.startPageToken
+                            ? checkpoint.startPageToken
+                            : timed("start page token", startPageTokenRequest(service)::execute).getStartPageToken();
+                    complete = performListing(session, recordListing, service, rootFolderId, fromBeginning, recursive, batchSize, timestampPrevRun, startPageToken, checkpoint);
+                    if (complete) {
+                        changesPageToken = startPageToken;
+                    }
+                } else {
+                    changesPageToken = performChangesListing(session, recordListing, service, rootFolderId, recursive, batchSize, changesPageToken);
+                }
+            } else if (STRATEGY_FLAT.getValue().equals(context.getProperty(LISTING_STRATEGY).getValue())) {
+                performFlatListing(session, recordListing, service, rootFolderId, fromBeginning, batchSize, timestampPrevRun);
+            } else {
+                complete = performListing(session, recordListing, service, rootFolderId, fromBeginning, recursive, batchSize, timestampPrevRun, null, checkpoint);
+            }
+            if (complete && (null != checkpoint || !session.getState(Scope.LOCAL).toMap().isEmpty())) {
+                session.setState(Collections.emptyMap(), Scope.LOCAL); // (done - nothing to resume)
+            }
+            if (null != recordListing) {
+                recordListing.finish();
+            }
         } catch (final Exception e) {
+            if (null != recordListing) {
+                recordListing.abort();
+            }
             getLogger().error("Failed to list contents due to {}", new Object[] {e}, e);
             session.rollback();
             context.yield();
             return;
         }
-        persistState(session);
+        if (complete) { // (otherwise the timestamp stays until the listing is done - the checkpoint resumes it)
+            persistState(session);
+        }
+        reportThrottling(session);
         session.commit(); // (regardless)
+        if (!complete) {
+            context.yield();
+        }
     }
 
-    private void performListing(ProcessSession session, Drive service, String folderId, String rootFolderId, String parentPath, boolean fromBeginning, boolean recursive, int batchSize, long timestampPrevRun) throws IOException {
-        getLogger().trace("Pulling file infos from ", new Object[] {folderId});
-        boolean first = true;
-        String nextToken = null;
+    /**
+     * Lists the folder (and its subfolders depth-first if recursive). Pages are pulled by up to listingThreads threads
+     * in parallel while FlowFiles are created on the calling thread only. The subfolders of a page are listed before the
+     * folder's next page, so the frontier never holds more than about depth x batch size pages no matter how wide the tree is.
+     * With every intermediate commit, the frontier is checkpointed (in local state) so an interrupted listing can resume. When a page's
+     * subfolders take the frontier beyond Max Pending Folder Pages, the listing stops there and is checkpointed - pages without subfolders
+     * never stop it, so the next run drains the deepest pending folders first and makes progress.
+     *
+     * @param startPageToken the changes page token taken before the listing (to be checkpointed - can be null)
+     * @param checkpoint where to resume (if it belongs to this listing - can be null)
+     * @return false if stopped for exceeding Max Pending Folder Pages (to be continued)
+     */
+    private boolean performListing(ProcessSession session, RecordListing recordListing, Drive service, String rootFolderId, boolean fromBeginning, boolean recursive, int batchSize,
+                                long timestampPrevRun, String startPageToken, CrawlCheckpoint checkpoint) throws IOException {
+        final String queryCondition = buildQueryCondition(fromBeginning ? 0L : timestampPrevRun, recursive);
+        final Deque<FolderPage> frontier = new ArrayDeque<>();
+        if (null != checkpoint && checkpoint.resumes(rootFolderId, queryCondition, timestampPrevRun)) {
+            getLogger().info("Resuming listing of {} with {} pending folder pages", new Object[] {rootFolderId, checkpoint.pages.size()});
+            frontier.addAll(checkpoint.pages);
+            currentTimestamp = Math.max(currentTimestamp, checkpoint.newestTimestamp);
+            session.adjustCounter("GDrive listings resumed", 1, false);
+        } else {
+            frontier.add(new FolderPage(rootFolderId, "", null));
+        }
+        final CompletionService<FolderPageResult> completionService = new ExecutorCompletionService<>(listingExecutor);
+        final Map<Future<FolderPageResult>, FolderPage> inFlight = new LinkedHashMap<>();
         long uncommitted = 0;
-        final List<String[]> subfoldersToList = new LinkedList<>();
-        while (first || nextToken != null) {
-            first = false;
-            final FileList result = service.files().list()
-                    .setQ("'" + folderId + "' in parents") // also coming from NiFi
-                    .setPageSize(batchSize)
-                    .setPageToken(nextToken)
-                    .setFields("nextPageToken, files(id, name, mimeType, createdTime, modifiedTime)")
-                    .execute();
-            final List<File> files = result.getFiles();
-            if (null == files || files.isEmpty()) {
-                getLogger().trace("No more file infos");
-                break;
-            }
-            getLogger().trace("Pulled {} file infos", new Object[] {files.size()});
-            nextToken = result.getNextPageToken();
-            for (File file : files) {
-                if (recursive && FOLDER_MIME_TYPE.equals(file.getMimeType())) {
-                    subfoldersToList.add(new String[]{file.getId(), file.getName()});
-                }
-                if (file.getModifiedTime().getValue() > timestampPrevRun || fromBeginning) {
-                    currentTimestamp = Math.max(currentTimestamp, file.getModifiedTime().getValue());
-                    FlowFile flowFile = session.create();
-                    Map<String, String> allAttributes = new HashMap<>();
-                    allAttributes.put("filename", file.getName());
-                    allAttributes.put("fileid", file.getId());
-                    allAttributes.put("created", file.getCreatedTime().toString());
-                    allAttributes.put("modified", file.getModifiedTime().toString());
-                    allAttributes.put("mime.type", file.getMimeType());
-                    allAttributes.put("is.folder", Boolean.toString(FOLDER_MIME_TYPE.equals(file.getMimeType())));
-                    allAttributes.put("file.path", parentPath + (parentPath.length() > 0 ? "/" : "") + file.getName());
-                    allAttributes.put("parent.folder", rootFolderId);
-                    allAttributes.put("file.parent.folder", folderId);
-                    flowFile = session.putAllAttributes(flowFile, allAttributes);
-                    session.transfer(flowFile, REL_SUCCESS);
-                    uncommitted++;
+        try {
+            while (!frontier.isEmpty() || !inFlight.isEmpty()) {
+                while (!frontier.isEmpty() && inFlight.size() < listingThreads) {
+                    final FolderPage folderPage = frontier.poll();
+                    inFlight.put(completionService.submit(() -> listPage(service, folderPage, queryCondition, batchSize)), folderPage);
                 }
-                if (uncommitted >= batchSize) {
+                final Future<FolderPageResult> done = completionService.take();
+                inFlight.remove(done);
+                final FolderPageResult pageResult = done.get();
+                final FolderPage folderPage = pageResult.folderPage;
+                final List<File> files = pageResult.files;
+                session.adjustCounter("GDrive list pages", 1, false);
+                if (null == folderPage.pageToken) {
+                    session.adjustCounter("GDrive folders visited", 1, false);
+                }
+                session.adjustCounter("GDrive listed items", null == files ? 0 : files.size(), false);
+                if (null == files || files.isEmpty()) {
+                    getLogger().trace("No more file infos in {}", new Object[] {folderPage.folderId});
+                    continue;
+                }
+                getLogger().trace("Pulled {} file infos from {}", new Object[] {files.size(), folderPage.folderId});
+                if (null != pageResult.nextPageToken) { // (the rest of the folder after the subfolders of this page)
+                    frontier.addFirst(new FolderPage(folderPage.folderId, folderPage.path, pageResult.nextPageToken));
+                }
+                final List<FolderPage> subfolders = new ArrayList<>();
+                for (File file : files) {
+                    if (recursive && FOLDER_MIME_TYPE.equals(file.getMimeType())) {
+                        subfolders.add(new FolderPage(file.getId(), folderPage.path + (folderPage.path.length() > 0 ? "/" : "") + file.getName(), null));
+                    }
+                    if ((file.getModifiedTime().getValue() > timestampPrevRun || fromBeginning) && matchesFilters(file)) { // (subfolders might come back for recursion only)
+                        createFlowFile(session, recordListing, file, folderPage.path, rootFolderId, folderPage.folderId);
+                        uncommitted++;
+                    }
+                }
+                for (int i = subfolders.size() - 1; i >= 0; i--) { // (in listing order)
+                    frontier.addFirst(subfolders.get(i));
+                }
+                final boolean tooManyPending = !subfolders.isEmpty() && frontier.size() + inFlight.size() > maxPendingPages;
+                if (tooManyPending || (null == recordListing && uncommitted >= batchSize)) { // (only between pages - so the frontier describes exactly what is left)
+                    final List<FolderPage> pending = new ArrayList<>(inFlight.values());
+                    pending.addAll(frontier);
+                    session.setState(new CrawlCheckpoint(rootFolderId, queryCondition, timestampPrevRun, currentTimestamp, startPageToken, pending).toState(), Scope.LOCAL);
+                    if (tooManyPending) { // (committed by the caller - together with the records if any)
+                        getLogger().warn("Listing {} has more than {} pending folder pages (at {}) - continuing with them next time",
+                                new Object[] {rootFolderId, maxPendingPages, folderPage.path});
+                        session.adjustCounter("GDrive listings suspended", 1, false);
+                        return false;
+                    }
                     session.commit();
                     uncommitted = 0;
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while listing " + rootFolderId, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to list " + rootFolderId, e.getCause());
+        } finally {
+            inFlight.keySet().forEach(future -> future.cancel(true));
         }
-        session.commit(); // (regardless)
-        for (String[] subfolderToList : subfoldersToList) {
-            performListing(session, service, subfolderToList[0], rootFolderId, parentPath + (parentPath.length() > 0 ? "/" : "") + subfolderToList[1], fromBeginning, recursive, batchSize, timestampPrevRun);
+        if (null == recordListing) {
+            session.commit(); // (regardless)
+        }
+        return true;
+    }
+
+    private FolderPageResult listPage(Drive service, FolderPage folderPage, String queryCondition, int batchSize) throws IOException {
+        getLogger().trace("Pulling file infos from {}", new Object[] {folderPage.folderId});
+        final Drive.Files.List list = filesList(service)
+                .setQ("'" + folderPage.folderId + "' in parents" + queryCondition) // also coming from NiFi
+                .setPageSize(batchSize)
+                .setPageToken(folderPage.pageToken)
+                .setFields("nextPageToken, files(" + fileFields() + ")");
+        final FileList result = timed("list page", list::execute);
+        return new FolderPageResult(folderPage, result.getFiles(), result.getNextPageToken());
+    }
+
+    /**
+     * Lists all changes since the given page token and picks the files within the folder (or its subfolders if recursive). Commits only
+     * between pages - together with the page token reached, so a run interrupted after a commit does not emit those changes again
+     *
+     * @return the page token to start from next time
+     */
+    private String performChangesListing(ProcessSession session, RecordListing recordListing, Drive service, String rootFolderId, boolean recursive, int batchSize, String pageToken) throws IOException {
+        getLogger().trace("Pulling changes from {}", new Object[] {pageToken});
+        final Map<String, File> folders = new HashMap<>(); // (folders looked up during this run)
+        long uncommitted = 0;
+        String nextToken = pageToken;
+        while (true) {
+            final Drive.Changes.List list = service.changes().list(nextToken)
+                    .setPageSize(batchSize)
+                    .setFields("nextPageToken, newStartPageToken, changes(fileId, removed, file(" + fileFields() + ", parents))");
+            if (null != sharedDriveId) {
+                list.setTeamDriveId(sharedDriveId).setSupportsTeamDrives(true).setIncludeTeamDriveItems(true);
+            }
+            final ChangeList result = timed("changes page", list::execute);
+            final List<Change> changes = result.getChanges();
+            session.adjustCounter("GDrive changes pages", 1, false);
+            session.adjustCounter("GDrive listed items", null == changes ? 0 : changes.size(), false);
+            getLogger().trace("Pulled {} changes", new Object[] {null == changes ? 0 : changes.size()});
+            if (null != changes) {
+                for (Change change : changes) {
+                    final File file = change.getFile();
+                    if (Boolean.TRUE.equals(change.getRemoved()) || null == file || (!includeTrashed && Boolean.TRUE.equals(file.getTrashed()))
+                            || null == file.getParents() || file.getParents().isEmpty() || !matchesFilters(file)) {
+                        continue;
+                    }
+                    final String parentPath = findPathBelow(session, service, file.getParents().get(0), rootFolderId, recursive, folders);
+                    if (null == parentPath) {
+                        continue; // (not within the folder)
+                    }
+                    createFlowFile(session, recordListing, file, parentPath, rootFolderId, file.getParents().get(0));
+                    uncommitted++;
+                }
+            }
+            if (null != result.getNewStartPageToken()) {
+                return result.getNewStartPageToken();
+            }
+            if (null == result.getNextPageToken()) {
+                return changesPageToken; // (should not happen - start over from the token reached next time)
+            }
+            nextToken = result.getNextPageToken();
+            if (null == recordListing && uncommitted >= batchSize) {
+                changesPageToken = nextToken;
+                persistState(session);
+                session.commit();
+                uncommitted = 0;
+            }
+        }
+    }
+
+    /**
+     * Lists all folders of the drive into a compact id -> (name, parent) map first, then pages through all other files of the drive
+     * and creates FlowFiles for those below the root folder, rebuilding their paths from the map. Needs (folders + files) / 1000
+     * requests instead of at least one per folder - memory grows with the number of folders only (and their compact nodes only:
+     * the folders to create FlowFiles for keep just their timestamps and additional fields besides).
+     */
+    private void performFlatListing(ProcessSession session, RecordListing recordListing, Drive service, String rootFolderId, boolean fromBeginning, int batchSize,
+                                    long timestampPrevRun) throws IOException {
+        final Map<String, FolderNode> folders = new HashMap<>();
+        final List<NewFolder> newFolders = new ArrayList<>();
+        final String trashedCondition = includeTrashed ? "" : " and trashed = false";
+        String pageToken = null;
+        do { // (all folders first - their paths are needed for everything else)
+            final FileList result = timed("list page", filesList(service)
+                    .setQ("mimeType = '" + FOLDER_MIME_TYPE + "'" + trashedCondition)
+                    .setPageSize(FLAT_PAGE_SIZE)
+                    .setPageToken(pageToken)
+                    .setFields("nextPageToken, files(" + fileFields() + ", parents)")::execute);
+            countFlatPage(session, result);
+            if (null != result.getFiles()) {
+                for (File folder : result.getFiles()) {
+                    folders.put(folder.getId(), new FolderNode(folder.getName(), null == folder.getParents() || folder.getParents().isEmpty() ? null : folder.getParents().get(0)));
+                    if ((folder.getModifiedTime().getValue() > timestampPrevRun || fromBeginning) && matchesFilters(folder)) {
+                        newFolders.add(new NewFolder(folder, additionalFields));
+                    }
+                }
+            }
+            pageToken = result.getNextPageToken();
+        } while (null != pageToken);
+        getLogger().trace("Pulled {} folders", new Object[] {folders.size()});
+        final Map<String, String> paths = new HashMap<>(); // (folder id -> path below the root folder, "" for the root folder, null if outside)
+        paths.put(rootFolderId, "");
+        long uncommitted = 0;
+        for (NewFolder folder : newFolders) {
+            uncommitted += createFlatFlowFile(session, recordListing, folder.toFile(folders.get(folder.id), additionalFields), rootFolderId, folders, paths);
+        }
+        final String queryCondition = buildQueryCondition(fromBeginning ? 0L : timestampPrevRun, false);
+        do {
+            final FileList result = timed("list page", filesList(service)
+                    .setQ("mimeType != '" + FOLDER_MIME_TYPE + "'" + queryCondition)
+                    .setPageSize(FLAT_PAGE_SIZE)
+                    .setPageToken(pageToken)
+                    .setFields("nextPageToken, files(" + fileFields() + ", parents)")::execute);
+            countFlatPage(session, result);
+            if (null != result.getFiles()) {
+                for (File file : result.getFiles()) {
+                    if ((file.getModifiedTime().getValue() > timestampPrevRun || fromBeginning) && matchesFilters(file)) {
+                        uncommitted += createFlatFlowFile(session, recordListing, file, rootFolderId, folders, paths);
+                    }
+                }
+            }
+            if (null == recordListing && uncommitted >= batchSize) {
+                session.commit();
+                uncommitted = 0;
+            }
+            pageToken = result.getNextPageToken();
+        } while (null != pageToken);
+        if (null == recordListing) {
+            session.commit(); // (regardless)
+        }
+    }
+
+    private void countFlatPage(ProcessSession session, FileList result) {
+        session.adjustCounter("GDrive list pages", 1, false);
+        session.adjustCounter("GDrive listed items", null == result.getFiles() ? 0 : result.getFiles().size(), false);
+    }
+
+    /**
+     * @return 1 if the file is below the root folder (and a FlowFile / record was created), 0 otherwise
+     */
+    private int createFlatFlowFile(ProcessSession session, RecordListing recordListing, File file, String rootFolderId, Map<String, FolderNode> folders,
+                                   Map<String, String> paths) throws IOException {
+        if (rootFolderId.equals(file.getId()) || null == file.getParents() || file.getParents().isEmpty()) {
+            return 0;
+        }
+        final String folderId = file.getParents().get(0);
+        final String parentPath = pathBelow(folderId, rootFolderId, folders, paths);
+        if (null == parentPath) {
+            return 0; // (not within the folder)
+        }
+        createFlowFile(session, recordListing, file, parentPath, rootFolderId, folderId);
+        return 1;
+    }
+
+    /**
+     * @return the path of the folder relative to the root folder ("" for the root folder itself) or null if not below it - from the map of all folders
+     */
+    static String pathBelow(String folderId, String rootFolderId, Map<String, FolderNode> folders, Map<String, String> paths) {
+        if (paths.containsKey(folderId)) {
+            return paths.get(folderId);
+        }
+        // (walk up to the first folder with a known path, then fill in the paths on the way back)
+        final Deque<String> chain = new ArrayDeque<>();
+        String currentFolderId = folderId;
+        while (null != currentFolderId && !paths.containsKey(currentFolderId) && chain.size() < MAX_FOLDER_DEPTH) {
+            chain.push(currentFolderId);
+            final FolderNode folder = folders.get(currentFolderId);
+            currentFolderId = null == folder ? null : folder.parentId;
+        }
+        String path = null == currentFolderId ? null : paths.get(currentFolderId);
+        while (!chain.isEmpty()) {
+            final String chainFolderId = chain.pop();
+            if (null != path) {
+                final String name = folders.get(chainFolderId).name;
+                path = path.isEmpty() ? name : path + "/" + name;
+            }
+            paths.put(chainFolderId, path);
+        }
+        return path;
+    }
+
+    /**
+     * @return a files.list request for the shared drive if one is set
+     */
+    private Drive.Files.List filesList(Drive service) throws IOException {
+        final Drive.Files.List list = service.files().list();
+        if (null != sharedDriveId) {
+            list.setCorpora("teamDrive").setTeamDriveId(sharedDriveId).setSupportsTeamDrives(true).setIncludeTeamDriveItems(true);
+        }
+        return list;
+    }
+
+    private Drive.Changes.GetStartPageToken startPageTokenRequest(Drive service) throws IOException {
+        final Drive.Changes.GetStartPageToken request = service.changes().getStartPageToken();
+        if (null != sharedDriveId) {
+            request.setTeamDriveId(sharedDriveId).setSupportsTeamDrives(true);
+        }
+        return request;
+    }
+
+    /**
+     * Pushes the modified time (and the filters) to GDrive, so unchanged files are not even sent. When searching recursively,
+     * subfolders are always included so they can be searched as well.
+     *
+     * @return the condition to append to the parents query (can be empty)
+     */
+    String buildQueryCondition(long modifiedAfter, boolean recursive) {
+        final List<String> conditions = new ArrayList<>();
+        if (modifiedAfter > 0) {
+            conditions.add("modifiedTime > '" + new DateTime(false, modifiedAfter, 0).toStringRfc3339() + "'");
+        }
+        if (null != nameFilter) {
+            conditions.add("name contains '" + escapeQueryValue(nameFilter) + "'");
+        }
+        if (null != mimeTypeFilter) {
+            conditions.add("mimeType = '" + escapeQueryValue(mimeTypeFilter) + "'");
+        }
+        if (!includeTrashed) {
+            conditions.add("trashed = false");
+        }
+        if (conditions.isEmpty()) {
+            return "";
+        }
+        final String condition = String.join(" and ", conditions);
+        return recursive ? " and (mimeType = '" + FOLDER_MIME_TYPE + "' or (" + condition + "))" : " and " + condition;
+    }
+
+    private boolean matchesFilters(File file) {
+        return (null == nameFilter || nameMatches(file.getName(), nameFilter))
+                && (null == mimeTypeFilter || mimeTypeFilter.equals(file.getMimeType()))
+                && (includeTrashed || !Boolean.TRUE.equals(file.getTrashed()));
+    }
+
+    /**
+     * Client-side version of GDrive's name contains (for listings that filter locally): the filter has to match, ignoring case, at the
+     * start of the name or of a word in it - so the Name Filter behaves the same with every listing strategy
+     */
+    static boolean nameMatches(String name, String filter) {
+        if (null == name) {
+            return false;
+        }
+        for (int i = 0; i + filter.length() <= name.length(); i++) {
+            if ((0 == i || !Character.isLetterOrDigit(name.charAt(i - 1))) && name.regionMatches(true, i, filter, 0, filter.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String fileFields() {
+        final List<String> fields = additionalFields;
+        return fields.isEmpty() ? FILE_FIELDS : FILE_FIELDS + ", " + String.join(", ", fields);
+    }
+
+    static String escapeQueryValue(String value) {
+        return value.replace("\\", "\\\\").replace("'", "\\'");
+    }
+
+    /**
+     * @return the path of the folder relative to the root folder ("" for the root folder itself) or null if not below it
+     */
+    private String findPathBelow(ProcessSession session, Drive service, String folderId, String rootFolderId, boolean recursive, Map<String, File> folders) throws IOException {
+        String path = "";
+        String currentFolderId = folderId;
+        for (int depth = 0; depth < MAX_FOLDER_DEPTH; depth++) {
+            if (rootFolderId.equals(currentFolderId)) {
+                return path;
+            }
+            if (!recursive) {
+                return null;
+            }
+            File folder = folders.get(currentFolderId);
+            if (null == folder) {
+                final Drive.Files.Get get = service.files().get(currentFolderId)
+                        .setFields("id, name, parents");
+                if (null != sharedDriveId) {
+                    get.setSupportsTeamDrives(true);
+                }
+                folder = timed("folder lookup", get::execute);
+                session.adjustCounter("GDrive folder lookups", 1, false);
+                folders.put(currentFolderId, folder);
+            }
+            if (null == folder.getParents() || folder.getParents().isEmpty()) {
+                return null; // (reached the top)
+            }
+            path = folder.getName() + (path.length() > 0 ? "/" : "") + path;
+            currentFolderId = folder.getParents().get(0);
+        }
+        return null;
+    }
+
+    private void createFlowFile(ProcessSession session, RecordListing recordListing, File file, String parentPath, String rootFolderId, String folderId) throws IOException {
+        currentTimestamp = Math.max(currentTimestamp, file.getModifiedTime().getValue());
+        if (null != recordListing) {
+            final Map<String, Object> values = new HashMap<>();
+            values.put("filename", file.getName());
+            values.put("fileid", file.getId());
+            values.put("created", null == file.getCreatedTime() ? null : new Timestamp(file.getCreatedTime().getValue()));
+            values.put("modified", new Timestamp(file.getModifiedTime().getValue()));
+            values.put("mimeType", file.getMimeType());
+            values.put("isFolder", FOLDER_MIME_TYPE.equals(file.getMimeType()));
+            values.put("filePath", parentPath + (parentPath.length() > 0 ? "/" : "") + file.getName());
+            values.put("parentFolder", rootFolderId);
+            values.put("fileParentFolder", folderId);
+            for (String field : additionalFields) {
+                final Object value = file.get(field);
+                values.put(recordFieldName(field), null == value ? null : value.toString());
+            }
+            recordListing.add(new MapRecord(recordSchema, values));
+            return;
+        }
+        FlowFile flowFile = session.create();
+        flowFile = session.putAllAttributes(flowFile, listingAttributes(file, parentPath, rootFolderId, folderId, additionalFields));
+        session.transfer(flowFile, REL_SUCCESS);
+    }
+
+    /**
+     * @return the attributes of a listed file (as written by ListGdrive and ListGdriveFolder)
+     */
+    static Map<String, String> listingAttributes(File file, String parentPath, String rootFolderId, String folderId, List<String> additionalFields) {
+        Map<String, String> allAttributes = new HashMap<>();
+        allAttributes.put("filename", file.getName());
+        allAttributes.put("fileid", file.getId());
+        allAttributes.put("created", file.getCreatedTime().toString());
+        allAttributes.put("modified", file.getModifiedTime().toString());
+        allAttributes.put("mime.type", file.getMimeType());
+        allAttributes.put("is.folder", Boolean.toString(FOLDER_MIME_TYPE.equals(file.getMimeType())));
+        allAttributes.put("file.path", parentPath + (parentPath.length() > 0 ? "/" : "") + file.getName());
+        allAttributes.put("parent.folder", rootFolderId);
+        allAttributes.put("file.parent.folder", folderId);
+        for (String field : additionalFields) {
+            final Object value = file.get(field);
+            if (null != value) {
+                allAttributes.put("file." + field, value.toString());
+            }
+        }
+        return allAttributes;
+    }
+
+    /**
+     * One page of a folder still to be listed (null pageToken = first page)
+     */
+    static class FolderPage {
+        final String folderId;
+        final String path;
+        final String pageToken;
+
+        FolderPage(String folderId, String path, String pageToken) {
+            this.folderId = folderId;
+            this.path = path;
+            this.pageToken = pageToken;
+        }
+    }
+
+    /**
+     * The state of an unfinished listing: the folder pages still to be listed (with the path of the folder and the page token)
+     * and what is needed to tell whether the next run can continue with them
+     */
+    static class CrawlCheckpoint {
+        final String rootFolderId;
+        final String queryCondition;
+        final long listedAfter;
+        final long newestTimestamp;
+        final String startPageToken;
+        final List<FolderPage> pages;
+
+        CrawlCheckpoint(String rootFolderId, String queryCondition, long listedAfter, long newestTimestamp, String startPageToken, List<FolderPage> pages) {
+            this.rootFolderId = rootFolderId;
+            this.queryCondition = queryCondition;
+            this.listedAfter = listedAfter;
+            this.newestTimestamp = newestTimestamp;
+            this.startPageToken = startPageToken;
+            this.pages = pages;
+        }
+
+        /**
+         * @return true if this is an unfinished listing of the same folder with the same query that started from the same state
+         * (after a listing by another primary node, the timestamp differs)
+         */
+        boolean resumes(String rootFolderId, String queryCondition, long listedAfter) {
+            return this.rootFolderId.equals(rootFolderId) && this.queryCondition.equals(queryCondition) && this.listedAfter == listedAfter;
+        }
+
+        Map<String, String> toState() {
+            final Map<String, String> state = new HashMap<>();
+            state.put(CHECKPOINT_PREFIX + "root", rootFolderId);
+            state.put(CHECKPOINT_PREFIX + "query", queryCondition);
+            state.put(CHECKPOINT_PREFIX + "listedAfter", String.valueOf(listedAfter));
+            state.put(CHECKPOINT_PREFIX + "newest", String.valueOf(newestTimestamp));
+            if (null != startPageToken) {
+                state.put(CHECKPOINT_PREFIX + "startPageToken", startPageToken);
+            }
+            state.put(CHECKPOINT_PREFIX + "pages", String.valueOf(pages.size()));
+            for (int i = 0; i < pages.size(); i++) {
+                final FolderPage page = pages.get(i);
+                // (ids and tokens have no tabs - the path comes last as it might)
+                state.put(CHECKPOINT_PREFIX + "page." + i, page.folderId + "\t" + (null == page.pageToken ? "" : page.pageToken) + "\t" + page.path);
+            }
+            return state;
+        }
+
+        /**
+         * @return the checkpoint in the state or null if there is none
+         */
+        static CrawlCheckpoint fromState(Map<String, String> state) {
+            final String pageCount = state.get(CHECKPOINT_PREFIX + "pages");
+            if (null == pageCount) {
+                return null;
+            }
+            final List<FolderPage> pages = new ArrayList<>();
+            for (int i = 0; i < Integer.parseInt(pageCount); i++) {
+                final String[] page = state.get(CHECKPOINT_PREFIX + "page." + i).split("\t", 3);
+                pages.add(new FolderPage(page[0], page[2], page[1].isEmpty() ? null : page[1]));
+            }
+            return new CrawlCheckpoint(state.get(CHECKPOINT_PREFIX + "root"), state.get(CHECKPOINT_PREFIX + "query"),
+                    Long.parseLong(state.get(CHECKPOINT_PREFIX + "listedAfter")), Long.parseLong(state.get(CHECKPOINT_PREFIX + "newest")),
+                    state.get(CHECKPOINT_PREFIX + "startPageToken"), pages);
+        }
+    }
+
+    /**
+     * A folder of a flat listing - just enough to rebuild paths
+     */
+    static class FolderNode {
+        final String name;
+        final String parentId;
+
+        FolderNode(String name, String parentId) {
+            this.name = name;
+            this.parentId = parentId;
+        }
+    }
+
+    /**
+     * A folder of a flat listing to create a FlowFile for - what its FlowFile needs besides its FolderNode (instead of the whole File)
+     */
+    static class NewFolder {
+        final String id;
+        final DateTime createdTime;
+        final DateTime modifiedTime;
+        final Object[] additionalValues; // (in the order of the additional fields)
+
+        NewFolder(File folder, List<String> additionalFields) {
+            this.id = folder.getId();
+            this.createdTime = folder.getCreatedTime();
+            this.modifiedTime = folder.getModifiedTime();
+            this.additionalValues = additionalFields.isEmpty() ? null : additionalFields.stream().map(folder::get).toArray();
+        }
+
+        File toFile(FolderNode node, List<String> additionalFields) {
+            final File folder = new File().setId(id).setName(node.name).setMimeType(FOLDER_MIME_TYPE).setCreatedTime(createdTime).setModifiedTime(modifiedTime)
+                    .setParents(null == node.parentId ? null : Collections.singletonList(node.parentId));
+            for (int i = 0; null != additionalValues && i < additionalValues.length; i++) {
+                if (null != additionalValues[i]) {
+                    folder.set(additionalFields.get(i), additionalValues[i]);
+                }
+            }
+            return folder;
+        }
+    }
+
+    static class FolderPageResult {
+        final FolderPage folderPage;
+        final List<File> files;
+        final String nextPageToken;
+
+        FolderPageResult(FolderPage folderPage, List<File> files, String nextPageToken) {
+            this.folderPage = folderPage;
+            this.files = files;
+            this.nextPageToken = nextPageToken;
+        }
+    }
+
+    /**
+     * Writes all listed files of a run as records into one FlowFile (created with the first record)
+     */
+    class RecordListing {
+        private final ProcessSession session;
+        private final RecordSetWriterFactory writerFactory;
+        private FlowFile flowFile;
+        private OutputStream contentStream;
+        private RecordSetWriter writer;
+
+        RecordListing(ProcessSession session, RecordSetWriterFactory writerFactory) {
+            this.session = session;
+            this.writerFactory = writerFactory;
+        }
+
+        void add(Record record) throws IOException {
+            if (null == writer) {
+                flowFile = session.create();
+                contentStream = session.write(flowFile);
+                try {
+                    writer = writerFactory.createWriter(getLogger(), writerFactory.getSchema(Collections.emptyMap(), recordSchema), contentStream, flowFile);
+                } catch (SchemaNotFoundException e) {
+                    throw new IOException("Failed to determine schema for listing", e);
+                }
+                writer.beginRecordSet();
+            }
+            writer.write(record);
+        }
+
+        void finish() throws IOException {
+            if (null == writer) {
+                return; // (nothing listed)
+            }
+            final WriteResult writeResult = writer.finishRecordSet();
+            final String mimeType = writer.getMimeType();
+            writer.close();
+            contentStream.close();
+            final Map<String, String> allAttributes = new HashMap<>(writeResult.getAttributes());
+            allAttributes.put("record.count", String.valueOf(writeResult.getRecordCount()));
+            allAttributes.put(CoreAttributes.MIME_TYPE.key(), mimeType);
+            flowFile = session.putAllAttributes(flowFile, allAttributes);
+            session.transfer(flowFile, REL_SUCCESS);
+            writer = null;
+        }
+
+        void abort() {
+            try {
+                if (null != writer) {
+                    writer.close();
+                }
+                if (null != contentStream) {
+                    contentStream.close();
+                }
+            } catch (IOException e) {
+                getLogger().debug("Failed to close record listing", e);
+            }
+            writer = null;
         }
     }
 }
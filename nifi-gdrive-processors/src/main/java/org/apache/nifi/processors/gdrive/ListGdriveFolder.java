@@ -0,0 +1,231 @@
+package org.apache.nifi.processors.gdrive;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import org.apache.nifi.annotation.behavior.*;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.util.*;
+
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"Google", "GDrive", "List", "Distributed"})
+@CapabilityDescription("Lists one folder in GDrive per incoming FlowFile. Creates a FlowFile for each file (or folder) in it that is new since the folder "
+        + "was last listed, and a FlowFile for each subfolder on the folders relationship. Routing folders back to this processor via a load-balanced "
+        + "connection crawls a tree on all nodes of a cluster (and with all concurrent tasks) instead of on the primary node only like ListGdrive. "
+        + "Start a crawl with a FlowFile whose fileid attribute is the folder to list (e.g. from GenerateFlowFile).")
+@SeeAlso({ListGdrive.class, FetchGdrive.class})
+@ReadsAttributes({
+        @ReadsAttribute(attribute = "is.folder", description = "If true, file.path and parent.folder are taken over from the incoming FlowFile (as written for subfolders)"),
+        @ReadsAttribute(attribute = "file.path", description = "The path of the folder below the folder the crawl started with"),
+        @ReadsAttribute(attribute = "parent.folder", description = "The folder the crawl started with")
+})
+@WritesAttributes({
+        @WritesAttribute(attribute = "filename", description = "The name of the file"),
+        @WritesAttribute(attribute = "fileid", description = "The id of the file"),
+        @WritesAttribute(attribute = "created", description = "The created date of the file"),
+        @WritesAttribute(attribute = "modified", description = "The modified date of the file"),
+        @WritesAttribute(attribute = "mime.type", description = "The mime type of the file"),
+        @WritesAttribute(attribute = "is.folder", description = "True if this file is a folder"),
+        @WritesAttribute(attribute = "file.path", description = "The path to the file (below the folder the crawl started with)"),
+        @WritesAttribute(attribute = "parent.folder", description = "The folder the crawl started with"),
+        @WritesAttribute(attribute = "file.parent.folder", description = "The immediate parent folder id = the folder listed"),
+        @WritesAttribute(attribute = "file.<field>", description = "The value of each of the Additional Fields requested (e.g. file.size)")
+})
+public class ListGdriveFolder extends AbstractGdriveProcessor {
+
+    public static final PropertyDescriptor FOLDER = new PropertyDescriptor.Builder()
+            .name("Folder")
+            .displayName("Folder")
+            .description("ID of the folder in GDrive to list")
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .defaultValue("${fileid}")
+            .build();
+
+    static final PropertyDescriptor PAGE_SIZE = new PropertyDescriptor.Builder()
+            .name("Page Size")
+            .displayName("Page Size")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Number of files requested per page of the listing (at most 1000)")
+            .required(true)
+            .addValidator(StandardValidators.createLongValidator(1, 1000, true))
+            .defaultValue("100")
+            .build();
+
+    public static final PropertyDescriptor INCLUDE_TRASHED = new PropertyDescriptor.Builder()
+            .fromPropertyDescriptor(ListGdrive.INCLUDE_TRASHED)
+            .build();
+
+    public static final PropertyDescriptor ADDITIONAL_FIELDS = new PropertyDescriptor.Builder()
+            .fromPropertyDescriptor(ListGdrive.ADDITIONAL_FIELDS)
+            .build();
+
+    public static final PropertyDescriptor DISTRIBUTED_CACHE_SERVICE = new PropertyDescriptor.Builder()
+            .name("Distributed Cache Service")
+            .displayName("Distributed Cache Service")
+            .description("For each folder listed, the timestamp of the newest file listed in it is stored here (one entry per folder and processor), "
+                    + "so the next listing of the folder only lists files added or modified after it. The cache is shared across the cluster, "
+                    + "so it does not matter which node lists a folder")
+            .required(true)
+            .identifiesControllerService(DistributedMapCacheClient.class)
+            .build();
+
+    public static final List<PropertyDescriptor> properties = Collections.unmodifiableList(Arrays.asList(
+        IAM_USER_JSON, GDRIVE_CLIENT_SERVICE, FOLDER, PAGE_SIZE, INCLUDE_TRASHED, ADDITIONAL_FIELDS, DISTRIBUTED_CACHE_SERVICE));
+
+    public static final Relationship REL_FOLDERS = new Relationship.Builder().name("folders")
+            .description("One FlowFile per subfolder of a listed folder (always, new or not) - route back to this processor to crawl the tree").build();
+    public static final Relationship REL_ORIGINAL = new Relationship.Builder().name("original")
+            .description("The incoming FlowFile once its folder has been listed").build();
+
+    public static final Set<Relationship> relationships = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList(REL_SUCCESS, REL_FOLDERS, REL_ORIGINAL, REL_FAILURE)));
+
+    static final String CACHE_KEY_PREFIX = "gdrive.listfolder.";
+
+    private volatile boolean includeTrashed;
+    private volatile List<String> additionalFields;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return properties;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @OnScheduled
+    public void setupFields(ProcessContext context) {
+        includeTrashed = context.getProperty(INCLUDE_TRASHED).asBoolean();
+        final List<String> fields = new ArrayList<>();
+        if (context.getProperty(ADDITIONAL_FIELDS).isSet()) {
+            for (String field : context.getProperty(ADDITIONAL_FIELDS).getValue().split(",")) {
+                fields.add(field.trim());
+            }
+        }
+        additionalFields = fields;
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        final FlowFile flowFile = session.get();
+        if (null == flowFile) {
+            return;
+        }
+        final String folderId = context.getProperty(FOLDER).evaluateAttributeExpressions(flowFile).getValue();
+        final boolean isSubfolder = Boolean.parseBoolean(flowFile.getAttribute("is.folder")) && null != flowFile.getAttribute("parent.folder");
+        final String rootFolderId = isSubfolder ? flowFile.getAttribute("parent.folder") : folderId;
+        final String path = isSubfolder ? flowFile.getAttribute("file.path") : "";
+        final List<FlowFile> created = new ArrayList<>();
+        final DistributedMapCacheClient cache = context.getProperty(DISTRIBUTED_CACHE_SERVICE).asControllerService(DistributedMapCacheClient.class);
+        final long listedBefore;
+        final long newest;
+        try {
+            listedBefore = listedBefore(cache, folderId);
+            newest = listFolder(context, session, flowFile, createDriveService(context), folderId, rootFolderId, path, listedBefore, created);
+        } catch (final Exception e) {
+            getLogger().error("Failed to list folder {} for {} due to {}", new Object[] {folderId, flowFile, e}, e);
+            session.remove(created);
+            session.transfer(flowFile, REL_FAILURE);
+            session.commit();
+            context.yield();
+            return;
+        }
+        session.transfer(flowFile, REL_ORIGINAL);
+        reportThrottling(session);
+        session.commit();
+        if (newest > listedBefore) { // (only once the listed files are committed)
+            rememberListed(cache, folderId, newest);
+        }
+    }
+
+    /**
+     * Pages through the folder, creating FlowFiles for new files and for all subfolders
+     *
+     * @return the newest modified time seen (or listedBefore if nothing new)
+     */
+    private long listFolder(ProcessContext context, ProcessSession session, FlowFile flowFile, Drive service, String folderId, String rootFolderId, String path,
+                            long listedBefore, List<FlowFile> created) throws IOException {
+        final StringBuilder query = new StringBuilder("'").append(ListGdrive.escapeQueryValue(folderId)).append("' in parents");
+        if (!includeTrashed) {
+            query.append(" and trashed = false");
+        }
+        if (listedBefore > 0) { // (subfolders are always needed to go on crawling)
+            query.append(" and (mimeType = '").append(ListGdrive.FOLDER_MIME_TYPE).append("' or modifiedTime > '")
+                    .append(new DateTime(false, listedBefore, 0).toStringRfc3339()).append("')");
+        }
+        final String fields = additionalFields.isEmpty() ? ListGdrive.FILE_FIELDS : ListGdrive.FILE_FIELDS + ", " + String.join(", ", additionalFields);
+        long newest = listedBefore;
+        String pageToken = null;
+        do {
+            final Drive.Files.List list = service.files().list()
+                    .setQ(query.toString())
+                    .setPageSize(context.getProperty(PAGE_SIZE).asInteger())
+                    .setPageToken(pageToken)
+                    .setFields("nextPageToken, files(" + fields + ")");
+            final FileList result = timed("list page", list::execute);
+            session.adjustCounter("GDrive list pages", 1, false);
+            final List<File> files = null == result.getFiles() ? Collections.emptyList() : result.getFiles();
+            session.adjustCounter("GDrive listed items", files.size(), false);
+            for (File file : files) {
+                final Map<String, String> attributes = ListGdrive.listingAttributes(file, path, rootFolderId, folderId, additionalFields);
+                if (ListGdrive.FOLDER_MIME_TYPE.equals(file.getMimeType())) {
+                    final FlowFile folderFlowFile = session.putAllAttributes(session.create(flowFile), attributes);
+                    created.add(folderFlowFile);
+                    session.transfer(folderFlowFile, REL_FOLDERS);
+                }
+                if (file.getModifiedTime().getValue() > listedBefore) {
+                    final FlowFile fileFlowFile = session.putAllAttributes(session.create(flowFile), attributes);
+                    created.add(fileFlowFile);
+                    session.transfer(fileFlowFile, REL_SUCCESS);
+                    newest = Math.max(newest, file.getModifiedTime().getValue());
+                }
+            }
+            pageToken = result.getNextPageToken();
+        } while (null != pageToken);
+        session.adjustCounter("GDrive folders visited", 1, false);
+        return newest;
+    }
+
+    /**
+     * @return the timestamp of the newest file listed in the folder before (0 if never listed)
+     */
+    private long listedBefore(DistributedMapCacheClient cache, String folderId) throws IOException {
+        final String value = cache.get(cacheKey(folderId), FetchGdrive.STRING_SERIALIZER, FetchGdrive.STRING_DESERIALIZER);
+        return null == value ? 0L : Long.parseLong(value);
+    }
+
+    /**
+     * Stores the folder's timestamp - a plain put: a folder is only listed concurrently if it was routed here twice, and then both listings
+     * started from the same timestamp
+     */
+    private void rememberListed(DistributedMapCacheClient cache, String folderId, long newest) {
+        try {
+            cache.put(cacheKey(folderId), String.valueOf(newest), FetchGdrive.STRING_SERIALIZER, FetchGdrive.STRING_SERIALIZER);
+        } catch (IOException e) { // (files are listed - they just might be listed again next time)
+            getLogger().warn("Failed to remember listing of folder {} due to {}", new Object[] {folderId, e}, e);
+        }
+    }
+
+    private String cacheKey(String folderId) {
+        return CACHE_KEY_PREFIX + getIdentifier() + "." + folderId;
+    }
+}
@@ -1,22 +1,49 @@
 package org.apache.nifi.processors.gdrive;
 
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.googleapis.media.MediaHttpUploaderProgressListener;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.nifi.annotation.behavior.*;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.stream.io.StreamUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
 @Tags({"Google", "GDrive", "Put"})
@@ -28,6 +55,7 @@ import java.util.*;
 @WritesAttributes({
         @WritesAttribute(attribute = "fileid", description = "The id of the file"),
         @WritesAttribute(attribute = "file.created", description = "True if file was newly created, false if a new version was created for an existing file"),
+        @WritesAttribute(attribute = "file.unchanged", description = "True if the existing file had the same content (MD5) and the upload was skipped - only with Skip Unchanged"),
         @WritesAttribute(attribute = "error.file.exists", description = "True if file exists and we fail b/c of that")
 })
 public class PutGdrive extends AbstractGdriveProcessor {
@@ -51,12 +79,102 @@ public class PutGdrive extends AbstractGdriveProcessor {
             .defaultValue("false")
             .build();
 
+    static final PropertyDescriptor SKIP_UNCHANGED = new PropertyDescriptor.Builder()
+            .name("Skip Unchanged")
+            .displayName("Skip Unchanged")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Compare the MD5 checksum of an existing file with the FlowFile content and skip the upload (and the new version) "
+                    + "if they are equal. Costs reading the content once more for existing files")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    static final PropertyDescriptor FOLDER_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("Folder Cache Size")
+            .displayName("Folder Cache Size")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Number of resolved subfolders (parent folder id and name to folder id) to remember, so files going to the same "
+                    + "subfolders don't look up every path segment again. 0 disables the cache")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("1000")
+            .build();
+
+    static final PropertyDescriptor FOLDER_CACHE_EXPIRATION = new PropertyDescriptor.Builder()
+            .name("Folder Cache Expiration")
+            .displayName("Folder Cache Expiration")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("How long a resolved subfolder is remembered. Entries are also dropped as soon as GDrive reports the folder as not found")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("10 min")
+            .build();
+
+    static final PropertyDescriptor RESUMABLE_UPLOAD_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Resumable Upload Threshold")
+            .displayName("Resumable Upload Threshold")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("FlowFiles smaller than this are uploaded in a single request, larger ones are uploaded in chunks "
+                    + "using a resumable upload (where a failed chunk is retried without sending the whole file again)")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("5 MB")
+            .build();
+
+    static final PropertyDescriptor UPLOAD_CHUNK_SIZE = new PropertyDescriptor.Builder()
+            .name("Upload Chunk Size")
+            .displayName("Upload Chunk Size")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Size of each chunk of a resumable upload (rounded down to a multiple of 256 KB). Each chunk is held in memory while sent")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("10 MB")
+            .build();
+
+    static final PropertyDescriptor UPLOAD_BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("Upload Batch Size")
+            .displayName("Upload Batch Size")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Number of FlowFiles taken per run. With more than one, the folder lookups and uploads of those up to 1 MB run concurrently "
+                    + "(up to Concurrent Uploads at a time), larger ones one after the other - and all of them are committed together. Keeps throughput "
+                    + "up on high-latency links with few concurrent tasks. With Skip Unchanged, the MD5 of every FlowFile uploaded concurrently is computed up front")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+
+    static final PropertyDescriptor CONCURRENT_UPLOADS = new PropertyDescriptor.Builder()
+            .name("Concurrent Uploads")
+            .displayName("Concurrent Uploads")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .description("Maximum number of FlowFiles of a batch (per concurrent task) being uploaded at the same time. Only FlowFiles up to 1 MB "
+                    + "are uploaded concurrently: their content is copied into memory before (the upload threads must not read from the session)")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("4")
+            .build();
+
     public static final List<PropertyDescriptor> properties = Collections.unmodifiableList(Arrays.asList(
-        IAM_USER_JSON, FOLDER, FAIL_IF_EXISTS));
+        IAM_USER_JSON, GDRIVE_CLIENT_SERVICE, FOLDER, FAIL_IF_EXISTS, SKIP_UNCHANGED, FOLDER_CACHE_SIZE, FOLDER_CACHE_EXPIRATION,
+        RESUMABLE_UPLOAD_THRESHOLD, UPLOAD_CHUNK_SIZE, UPLOAD_BATCH_SIZE, CONCURRENT_UPLOADS));
 
     public static final Set<Relationship> relationships = Collections.unmodifiableSet(
             new HashSet<>(Arrays.asList(REL_SUCCESS, REL_FAILURE)));
 
+    // (query for an existing file or folder: escaped name and parent folder id)
+    static final String EXISTENCE_QUERY = "name = '%s' and '%s' in parents";
+
+    // (contents up to this size are copied into memory for concurrent uploads - larger ones are uploaded on the onTrigger thread, never copied)
+    static final long MAX_CONTENT_COPY_IN_MEMORY = 1024 * 1024;
+
+    private volatile ExpiringLruCache<String, String> folderCache;
+    // (parent id/name -> folder being looked up or created by another thread)
+    private final ConcurrentMap<String, CompletableFuture<String>> pendingFolders = new ConcurrentHashMap<>();
+    private volatile long resumableUploadThreshold;
+    private volatile int uploadChunkSize;
+    private volatile ExecutorService uploadExecutor;
+
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return properties;
@@ -67,76 +185,468 @@ public class PutGdrive extends AbstractGdriveProcessor {
         return relationships;
     }
 
+    @OnScheduled
+    public void createUploadSettings(ProcessContext context) {
+        resumableUploadThreshold = context.getProperty(RESUMABLE_UPLOAD_THRESHOLD).asDataSize(DataUnit.B).longValue();
+        // (resumable chunks must be a multiple of 256 KB)
+        final long chunkSize = context.getProperty(UPLOAD_CHUNK_SIZE).asDataSize(DataUnit.B).longValue();
+        uploadChunkSize = (int) Math.max(MediaHttpUploader.MINIMUM_CHUNK_SIZE,
+                Math.min(chunkSize, Integer.MAX_VALUE) / MediaHttpUploader.MINIMUM_CHUNK_SIZE * MediaHttpUploader.MINIMUM_CHUNK_SIZE);
+    }
+
+    @OnScheduled
+    public void createUploadExecutor(ProcessContext context) {
+        if (context.getProperty(UPLOAD_BATCH_SIZE).asInteger() <= 1) {
+            return; // (uploads on the onTrigger thread)
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        uploadExecutor = Executors.newFixedThreadPool(context.getProperty(CONCURRENT_UPLOADS).asInteger() * context.getMaxConcurrentTasks(), r -> {
+            final Thread thread = new Thread(r, "PutGdrive " + getIdentifier() + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @OnStopped
+    public void shutdownUploadExecutor() {
+        if (null != uploadExecutor) {
+            uploadExecutor.shutdownNow();
+            uploadExecutor = null;
+        }
+    }
+
+    @OnScheduled
+    public void createFolderCache(ProcessContext context) {
+        final int cacheSize = context.getProperty(FOLDER_CACHE_SIZE).asInteger();
+        folderCache = cacheSize > 0
+                ? new ExpiringLruCache<>(cacheSize, context.getProperty(FOLDER_CACHE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)
+                : null;
+    }
+
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException { // TODO: more trace - 2nd mode: use fileid instead of filename
-        FlowFile flowFile = session.get();
-        if (null == flowFile) {
+        final List<FlowFile> flowFiles = session.get(context.getProperty(UPLOAD_BATCH_SIZE).asInteger());
+        if (flowFiles.isEmpty()) {
             return;
         }
+        final boolean failIfExists = context.getProperty(FAIL_IF_EXISTS).asBoolean();
+        final boolean skipUnchanged = context.getProperty(SKIP_UNCHANGED).asBoolean();
+        final GdriveCounters counters = new GdriveCounters();
+        boolean failed = false;
+        final Drive service;
         try {
-            final Drive service = createDriveService(context);
-            final String[] targetName = flowFile.getAttribute("filename").split("/");
-            String currentFolderId = context.getProperty(FOLDER).evaluateAttributeExpressions(flowFile).getValue();
-            for (int i = 0; i < targetName.length; i++) {
-                final boolean targetNameLast = (i == (targetName.length - 1));
-                // check for existing
-                String existId = null;
-                FileList existResult = service.files().list()
-                        .setQ("name='" + targetName[i] + "' and '" + currentFolderId + "' in parents")
-                        .setPageSize(1)
-                        .setFields("files(id, name)")
-                        .execute();
-                final List<File> existFiles = existResult.getFiles();
-                if (!(existFiles == null || existFiles.isEmpty())) {
-                    existId = existFiles.get(0).getId();
-                }
-                if (!targetNameLast) { // folder (create or just move on)
-                    if (null == existId) {
-                        File folderMetadata = new File();
-                        folderMetadata.setName(targetName[i]);
-                        folderMetadata.setMimeType("application/vnd.google-apps.folder");
-                        folderMetadata.setParents(Collections.singletonList(currentFolderId));
-                        File folder = service.files().create(folderMetadata)
-                                .setFields("id")
-                                .execute();
-                        currentFolderId = folder.getId();
-                    } else {
-                        currentFolderId = existId;
+            service = createDriveService(context);
+        } catch (final Exception e) {
+            getLogger().error("Failed to put contents due to {}", new Object[] {e}, e);
+            session.transfer(flowFiles, REL_FAILURE);
+            session.commit();
+            context.yield();
+            return;
+        }
+        final ExecutorService executor = uploadExecutor;
+        if (flowFiles.size() > 1 && null != executor) {
+            failed = uploadConcurrently(context, session, executor, service, flowFiles, counters, failIfExists, skipUnchanged);
+        } else {
+            for (FlowFile flowFile : flowFiles) {
+                failed |= uploadInline(context, session, service, flowFile, counters, failIfExists, skipUnchanged);
+            }
+        }
+        counters.drainTo(session);
+        reportThrottling(session);
+        session.commit();
+        if (failed) {
+            context.yield();
+        }
+    }
+
+    /**
+     * Uploads on the onTrigger thread - content and MD5 are read from the session only when needed
+     *
+     * @return true if failed
+     */
+    private boolean uploadInline(ProcessContext context, ProcessSession session, Drive service, FlowFile flowFile, GdriveCounters counters,
+                                 boolean failIfExists, boolean skipUnchanged) {
+        try {
+            final UploadRequest request = prepareUpload(context, session, flowFile, false, skipUnchanged);
+            return completeUpload(session, flowFile, upload(service, request, counters, failIfExists, skipUnchanged), null, skipUnchanged);
+        } catch (final Exception e) {
+            return completeUpload(session, flowFile, null, e, skipUnchanged);
+        }
+    }
+
+    /**
+     * Runs the uploads of a batch's small FlowFiles on the upload executor, at most Concurrent Uploads at a time, then uploads the
+     * larger ones here one after the other (their content is never copied). Only this (the onTrigger) thread touches the session:
+     * contents are copied here before submitting and results are routed here as they complete.
+     * When interrupted, finished uploads are routed still and the other FlowFiles go back to the queue.
+     *
+     * @return true if any FlowFile failed
+     */
+    private boolean uploadConcurrently(ProcessContext context, ProcessSession session, ExecutorService executor, Drive service, List<FlowFile> flowFiles,
+                                       GdriveCounters counters, boolean failIfExists, boolean skipUnchanged) {
+        final int maxInFlight = context.getProperty(CONCURRENT_UPLOADS).asInteger();
+        final CompletionService<UploadResult> completionService = new ExecutorCompletionService<>(executor);
+        final Map<Future<UploadResult>, UploadRequest> inFlight = new HashMap<>();
+        final List<FlowFile> large = new ArrayList<>();
+        boolean failed = false;
+        int next = 0;
+        try {
+            while (next < flowFiles.size() || !inFlight.isEmpty()) {
+                while (next < flowFiles.size() && inFlight.size() < maxInFlight) {
+                    final FlowFile flowFile = flowFiles.get(next++);
+                    if (flowFile.getSize() > MAX_CONTENT_COPY_IN_MEMORY) {
+                        large.add(flowFile);
+                        continue;
                     }
-                } else { // the file itself (create or overwrite)
-                    //fileMetadata.setOwners(folderMeta.getOwners());
-                    InputStreamContent mediaContent = new InputStreamContent(flowFile.getAttribute("mime.type"), session.read(flowFile));
-                    File uploaded = null;
-                    if (null == existId) {
-                        File fileMetadata = new File();
-                        fileMetadata.setName(targetName[i]);
-                        fileMetadata.setParents(Collections.singletonList(currentFolderId));
-                        uploaded = service.files().create(fileMetadata, mediaContent)
-                                .setFields("id")
-                                .execute();
-                        flowFile = session.putAttribute(flowFile, "file.created", Boolean.toString(true));
-                    } else if (context.getProperty(FAIL_IF_EXISTS).asBoolean()) {
-                        flowFile = session.putAttribute(flowFile, "error.file.exists", Boolean.toString(true));
-                        session.transfer(flowFile, REL_FAILURE);
-                        session.commit();
-                        context.yield();
-                        return;
-                    } else {
-                        uploaded = service.files().update(existId, null, mediaContent)
-                                .setFields("id")
-                                .execute();
-                        flowFile = session.putAttribute(flowFile, "file.created", Boolean.toString(false));
+                    final UploadRequest request;
+                    try {
+                        request = prepareUpload(context, session, flowFile, true, skipUnchanged);
+                    } catch (final Exception e) {
+                        failed |= completeUpload(session, flowFile, null, e, skipUnchanged);
+                        continue;
                     }
-                    flowFile = session.putAttribute(flowFile, "fileid", uploaded.getId());
+                    inFlight.put(completionService.submit(() -> upload(service, request, counters, failIfExists, skipUnchanged)), request);
+                }
+                if (inFlight.isEmpty()) {
+                    continue; // (the rest failed before being submitted)
                 }
+                final Future<UploadResult> done = completionService.take();
+                failed |= completeUpload(session, inFlight.remove(done), done, skipUnchanged);
             }
-            session.transfer(flowFile, REL_SUCCESS);
-            session.commit();
-        } catch (final Exception e) {
-            getLogger().error("Failed to put contents due to {}", new Object[] {e}, e);
+        } catch (InterruptedException e) {
+            for (Iterator<Map.Entry<Future<UploadResult>, UploadRequest>> pending = inFlight.entrySet().iterator(); pending.hasNext(); ) {
+                final Map.Entry<Future<UploadResult>, UploadRequest> upload = pending.next();
+                if (upload.getKey().isDone()) { // (uploaded already - not again)
+                    pending.remove();
+                    failed |= completeUpload(session, upload.getValue(), upload.getKey(), skipUnchanged);
+                }
+            }
+            inFlight.values().forEach(request -> session.transfer(request.flowFile));
+            session.transfer(large);
+            session.transfer(flowFiles.subList(next, flowFiles.size()));
+            Thread.currentThread().interrupt();
+            return failed;
+        } finally {
+            inFlight.keySet().forEach(pending -> pending.cancel(true));
+        }
+        for (FlowFile flowFile : large) {
+            failed |= uploadInline(context, session, service, flowFile, counters, failIfExists, skipUnchanged);
+        }
+        return failed;
+    }
+
+    /**
+     * Routes the FlowFile of an upload run on the upload executor (which must be done)
+     *
+     * @return true if failed
+     */
+    private boolean completeUpload(ProcessSession session, UploadRequest request, Future<UploadResult> done, boolean skipUnchanged) {
+        try {
+            return completeUpload(session, request.flowFile, done.get(), null, skipUnchanged);
+        } catch (ExecutionException e) {
+            return completeUpload(session, request.flowFile, null, e.getCause() instanceof Exception ? (Exception) e.getCause() : e, skipUnchanged);
+        } catch (InterruptedException e) { // (does not wait - it is done)
+            Thread.currentThread().interrupt();
+            return completeUpload(session, request.flowFile, null, e, skipUnchanged);
+        }
+    }
+
+    /**
+     * Takes everything an upload needs from the session (on the onTrigger thread)
+     *
+     * @param copyContent true to copy the content into memory (and compute the MD5 if needed) right away - for uploads on other threads,
+     *                    which must not use the session (up to MAX_CONTENT_COPY_IN_MEMORY only)
+     */
+    private UploadRequest prepareUpload(ProcessContext context, ProcessSession session, FlowFile flowFile, boolean copyContent, boolean skipUnchanged) throws IOException {
+        final String[] targetName = flowFile.getAttribute("filename").split("/");
+        final String rootFolderId = context.getProperty(FOLDER).evaluateAttributeExpressions(flowFile).getValue();
+        if (!copyContent) {
+            return new UploadRequest(flowFile, targetName, rootFolderId, () -> session.read(flowFile), () -> contentMd5(session, flowFile));
+        }
+        final MessageDigest digest = skipUnchanged ? DigestUtils.getMd5Digest() : null;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) flowFile.getSize());
+        session.read(flowFile, in -> StreamUtils.copy(null == digest ? in : new DigestInputStream(in, digest), buffer));
+        final byte[] content = buffer.toByteArray();
+        final String md5 = null == digest ? null : Hex.encodeHexString(digest.digest());
+        return new UploadRequest(flowFile, targetName, rootFolderId, () -> new ByteArrayInputStream(content), () -> md5);
+    }
+
+    /**
+     * Resolves the folder, looks for an existing file and uploads (or skips) it - without touching the session, so it can run on any thread
+     */
+    private UploadResult upload(Drive service, UploadRequest request, GdriveCounters counters, boolean failIfExists, boolean skipUnchanged) throws IOException {
+        final String[] targetName = request.targetName;
+        final List<String> cachedFolderKeys = new ArrayList<>();
+        try {
+            String currentFolderId;
+            File existing;
+            try {
+                currentFolderId = resolveFolder(counters, service, request.rootFolderId, targetName, cachedFolderKeys);
+                existing = findExistingFile(counters, service, currentFolderId, targetName[targetName.length - 1], skipUnchanged);
+            } catch (GoogleJsonResponseException e) {
+                if (e.getStatusCode() != 404 || cachedFolderKeys.isEmpty()) {
+                    throw e;
+                }
+                getLogger().debug("Cached folder not found anymore - resolving {} again", new Object[] {request.flowFile.getAttribute("filename")});
+                invalidateFolderCache(cachedFolderKeys);
+                currentFolderId = resolveFolder(counters, service, request.rootFolderId, targetName, null);
+                existing = findExistingFile(counters, service, currentFolderId, targetName[targetName.length - 1], skipUnchanged);
+            }
+            final String existId = null == existing ? null : existing.getId();
+            // the file itself (create or overwrite)
+            if (null != existId && failIfExists) {
+                return new UploadResult(existId, false, false, true);
+            }
+            if (skipUnchanged && null != existing && null != existing.getMd5Checksum()) {
+                final String md5 = request.contentMd5.execute();
+                if (existing.getMd5Checksum().equalsIgnoreCase(md5)) {
+                    getLogger().debug("Content of {} unchanged (MD5 {}) - skipping upload", new Object[] {request.flowFile, md5});
+                    counters.adjust("GDrive unchanged uploads skipped", 1);
+                    return new UploadResult(existId, false, true, false);
+                }
+            }
+            //fileMetadata.setOwners(folderMeta.getOwners());
+            File uploaded = null;
+            try (InputStream content = request.content.execute()) { // (closed on failure as well - before routing the FlowFile)
+                InputStreamContent mediaContent = new InputStreamContent(request.flowFile.getAttribute("mime.type"), content)
+                        .setLength(request.flowFile.getSize());
+                if (null == existId) {
+                    File fileMetadata = new File();
+                    fileMetadata.setName(targetName[targetName.length - 1]);
+                    fileMetadata.setParents(Collections.singletonList(currentFolderId));
+                    final Drive.Files.Create create = service.files().create(fileMetadata, mediaContent);
+                    configureUpload(create.getMediaHttpUploader(), request.flowFile.getSize(), counters);
+                    create.setFields("id");
+                    uploaded = timed("upload", create::execute);
+                } else {
+                    final Drive.Files.Update update = service.files().update(existId, null, mediaContent);
+                    configureUpload(update.getMediaHttpUploader(), request.flowFile.getSize(), counters);
+                    update.setFields("id");
+                    uploaded = timed("upload", update::execute);
+                }
+            }
+            counters.adjust("GDrive files uploaded", 1);
+            return new UploadResult(uploaded.getId(), null == existId, false, false);
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() == 404) {
+                invalidateFolderCache(cachedFolderKeys); // (folder might be gone - look it up again next time)
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Routes the FlowFile of a finished upload (on the onTrigger thread)
+     *
+     * @return true if failed
+     */
+    private boolean completeUpload(ProcessSession session, FlowFile flowFile, UploadResult result, Exception failure, boolean skipUnchanged) {
+        if (null != failure) {
+            getLogger().error("Failed to put contents of {} due to {}", new Object[] {flowFile, failure}, failure);
             session.transfer(flowFile, REL_FAILURE);
-            session.commit();
-            context.yield();
+            return true;
+        }
+        if (result.exists) {
+            flowFile = session.putAttribute(flowFile, "error.file.exists", Boolean.toString(true));
+            session.transfer(flowFile, REL_FAILURE);
+            return true;
+        }
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("fileid", result.fileId);
+        attributes.put("file.created", Boolean.toString(result.created));
+        if (skipUnchanged) {
+            attributes.put("file.unchanged", Boolean.toString(result.unchanged));
+        }
+        flowFile = session.putAllAttributes(flowFile, attributes);
+        session.transfer(flowFile, REL_SUCCESS);
+        return false;
+    }
+
+    /**
+     * Small files go up in one (multipart) request, larger ones via the resumable protocol in chunks - so a failing
+     * chunk is retried on its own instead of starting over with the whole file
+     */
+    void configureUpload(MediaHttpUploader uploader, long size, GdriveCounters counters) {
+        if (null == uploader) {
+            return; // (no media)
+        }
+        final boolean resumable = size >= resumableUploadThreshold;
+        uploader.setDirectUploadEnabled(!resumable);
+        if (resumable) {
+            uploader.setChunkSize(uploadChunkSize);
+            counters.adjust("GDrive resumable uploads", 1);
+        }
+        uploader.setProgressListener(new MediaHttpUploaderProgressListener() {
+            private long bytesReported = 0;
+
+            @Override
+            public void progressChanged(MediaHttpUploader progressUploader) {
+                final long bytesUploaded = progressUploader.getNumBytesUploaded();
+                if (bytesUploaded > bytesReported) {
+                    counters.adjust("GDrive bytes uploaded", bytesUploaded - bytesReported);
+                    bytesReported = bytesUploaded;
+                }
+            }
+        });
+    }
+
+    /**
+     * Walks (and creates where needed) all folders of the given path except for the last segment (= the file)
+     *
+     * @param cachedFolderKeys collects the cache keys served from cache (null to bypass the cache for lookups)
+     * @return the id of the folder to place the file in
+     */
+    String resolveFolder(GdriveCounters counters, Drive service, String rootFolderId, String[] targetName, List<String> cachedFolderKeys) throws IOException {
+        final ExpiringLruCache<String, String> cache = folderCache;
+        String currentFolderId = rootFolderId;
+        for (int i = 0; i < targetName.length - 1; i++) {
+            final String cacheKey = currentFolderId + "/" + targetName[i];
+            if (null != cache && null != cachedFolderKeys) {
+                final String cachedId = cache.get(cacheKey);
+                if (null != cachedId) {
+                    counters.adjust("GDrive folder cache hits", 1);
+                    cachedFolderKeys.add(cacheKey);
+                    currentFolderId = cachedId;
+                    continue;
+                }
+            }
+            currentFolderId = findOrCreateFolder(counters, service, currentFolderId, targetName[i], cacheKey, cache);
+        }
+        return currentFolderId;
+    }
+
+    /**
+     * Looks up the folder and creates it if missing - only one thread per parent/name at a time (others wait and take the winner's id),
+     * so concurrent FlowFiles for the same new path do not create duplicate folders (other nodes of a cluster still can)
+     */
+    private String findOrCreateFolder(GdriveCounters counters, Drive service, String parentId, String name, String cacheKey,
+                                      ExpiringLruCache<String, String> cache) throws IOException {
+        final CompletableFuture<String> pending = new CompletableFuture<>();
+        final CompletableFuture<String> inFlight = pendingFolders.putIfAbsent(cacheKey, pending);
+        if (null != inFlight) {
+            counters.adjust("GDrive folder lookups shared", 1);
+            return awaitFolder(inFlight, name);
+        }
+        try {
+            String folderId = findExisting(counters, service, parentId, name);
+            if (null == folderId) { // create (or just move on)
+                File folderMetadata = new File();
+                folderMetadata.setName(name);
+                folderMetadata.setMimeType(ListGdrive.FOLDER_MIME_TYPE);
+                folderMetadata.setParents(Collections.singletonList(parentId));
+                final Drive.Files.Create create = service.files().create(folderMetadata)
+                        .setFields("id");
+                File folder = timed("folder create", create::execute);
+                counters.adjust("GDrive folders created", 1);
+                folderId = folder.getId();
+            }
+            if (null != cache) {
+                cache.put(cacheKey, folderId); // (before leaving single-flight - later threads find it cached)
+            }
+            pending.complete(folderId);
+            return folderId;
+        } catch (IOException | RuntimeException e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingFolders.remove(cacheKey, pending);
+        }
+    }
+
+    private static String awaitFolder(CompletableFuture<String> inFlight, String name) throws IOException {
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for folder " + name);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to look up or create folder " + name, e.getCause());
+        }
+    }
+
+    private String findExisting(GdriveCounters counters, Drive service, String folderId, String name) throws IOException {
+        final Drive.Files.List list = existenceQuery(service, folderId, name, "files(id, name)");
+        final FileList existResult = timed("folder lookup", list::execute);
+        counters.adjust("GDrive folder lookups", 1);
+        final List<File> existFiles = existResult.getFiles();
+        if (existFiles == null || existFiles.isEmpty()) {
+            return null;
+        }
+        return existFiles.get(0).getId();
+    }
+
+    private File findExistingFile(GdriveCounters counters, Drive service, String folderId, String name, boolean withChecksum) throws IOException {
+        final Drive.Files.List list = existenceQuery(service, folderId, name, withChecksum ? "files(id, name, md5Checksum)" : "files(id, name)");
+        final FileList existResult = timed("file lookup", list::execute);
+        counters.adjust("GDrive file lookups", 1);
+        final List<File> existFiles = existResult.getFiles();
+        if (existFiles == null || existFiles.isEmpty()) {
+            return null;
+        }
+        return existFiles.get(0);
+    }
+
+    private Drive.Files.List existenceQuery(Drive service, String folderId, String name, String fields) throws IOException {
+        return service.files().list()
+                .setQ(existenceQuery(folderId, name))
+                .setPageSize(1)
+                .setFields(fields);
+    }
+
+    /**
+     * @return the query for a file or folder of the name in the folder (see {@link #EXISTENCE_QUERY})
+     */
+    static String existenceQuery(String folderId, String name) {
+        return String.format(EXISTENCE_QUERY, ListGdrive.escapeQueryValue(name), ListGdrive.escapeQueryValue(folderId));
+    }
+
+    /**
+     * @return the hex MD5 of the content (streamed - never held in memory)
+     */
+    static String contentMd5(ProcessSession session, FlowFile flowFile) throws IOException {
+        try (InputStream content = session.read(flowFile)) {
+            return DigestUtils.md5Hex(content);
+        }
+    }
+
+    private void invalidateFolderCache(List<String> cacheKeys) {
+        final ExpiringLruCache<String, String> cache = folderCache;
+        if (null != cache) {
+            cacheKeys.forEach(cache::remove);
+        }
+        cacheKeys.clear();
+    }
+
+    /**
+     * One FlowFile to upload - content and MD5 come from the session lazily (same thread) or are taken up front (other threads)
+     */
+    static class UploadRequest {
+        final FlowFile flowFile;
+        final String[] targetName;
+        final String rootFolderId;
+        final GdriveCall<InputStream> content;
+        final GdriveCall<String> contentMd5;
+
+        UploadRequest(FlowFile flowFile, String[] targetName, String rootFolderId, GdriveCall<InputStream> content, GdriveCall<String> contentMd5) {
+            this.flowFile = flowFile;
+            this.targetName = targetName;
+            this.rootFolderId = rootFolderId;
+            this.content = content;
+            this.contentMd5 = contentMd5;
+        }
+    }
+
+    static class UploadResult {
+        final String fileId;
+        final boolean created;
+        final boolean unchanged;
+        final boolean exists;
+
+        UploadResult(String fileId, boolean created, boolean unchanged, boolean exists) {
+            this.fileId = fileId;
+            this.created = created;
+            this.unchanged = unchanged;
+            this.exists = exists;
         }
     }
 }
@@ -0,0 +1,310 @@
+package org.apache.nifi.processors.gdrive;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.services.AbstractGoogleClient;
+import com.google.api.client.http.HttpBackOffIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.services.drive.Drive;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"Google", "GDrive", "Client", "Credentials"})
+@CapabilityDescription("Holds one GDrive client per configured IAM user (service account) for as long as the service is enabled. "
+        + "The HTTP transport and the parsed credentials are created once, and the OAuth access token is refreshed in the background "
+        + "before it expires, so processors never pay for client setup or token exchange while handling FlowFiles. "
+        + "Requests are limited to a configurable rate per IAM user (shared across all processors and services).")
+public class StandardGdriveClientService extends AbstractControllerService implements GdriveClientService {
+
+    public static final PropertyDescriptor IAM_USER_JSON = new PropertyDescriptor.Builder()
+            .fromPropertyDescriptor(AbstractGdriveProcessor.IAM_USER_JSON)
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor TOKEN_REFRESH_LEAD_TIME = new PropertyDescriptor.Builder()
+            .name("Token Refresh Lead Time")
+            .displayName("Token Refresh Lead Time")
+            .description("How long before the access token expires it is refreshed in the background")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 min")
+            .build();
+
+    public static final PropertyDescriptor REQUESTS_PER_SECOND = new PropertyDescriptor.Builder()
+            .name("Requests Per Second")
+            .displayName("Requests Per Second")
+            .description("Maximum rate of requests to GDrive for the IAM user. The limit is shared by all processors and services using the same IAM user "
+                    + "(processors using IAM user JSON directly share it with the default of " + (long) GdriveRateLimiter.DEFAULT_REQUESTS_PER_SECOND + "). "
+                    + "When GDrive responds with a rate limit error anyway, all requests of the IAM user are paused with exponential backoff")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue(String.valueOf((long) GdriveRateLimiter.DEFAULT_REQUESTS_PER_SECOND))
+            .build();
+
+    static final AllowableValue TRANSPORT_JAVA = new AllowableValue("java", "Java HttpURLConnection",
+            "Use the JDK's HttpURLConnection (keep-alive as per JDK defaults, no control over the pool)");
+    static final AllowableValue TRANSPORT_APACHE = new AllowableValue("apache", "Apache HttpClient (pooled)",
+            "Use a pooled Apache HttpClient so many concurrent tasks re-use open (TLS) connections");
+
+    public static final PropertyDescriptor HTTP_TRANSPORT = new PropertyDescriptor.Builder()
+            .name("HTTP Transport")
+            .displayName("HTTP Transport")
+            .description("HTTP client used for all requests to GDrive")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .required(true)
+            .allowableValues(TRANSPORT_JAVA, TRANSPORT_APACHE)
+            .defaultValue(TRANSPORT_JAVA.getValue())
+            .build();
+
+    public static final PropertyDescriptor MAX_CONNECTIONS_PER_ROUTE = new PropertyDescriptor.Builder()
+            .name("Max Connections Per Route")
+            .displayName("Max Connections Per Route")
+            .description("Maximum number of pooled connections to one host (only for the pooled Apache HttpClient) - "
+                    + "should be at least the number of concurrent tasks (and listing / download threads) using the service")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("20")
+            .build();
+
+    public static final PropertyDescriptor CONNECT_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Connect Timeout")
+            .displayName("Connect Timeout")
+            .description("Maximum time to wait for a connection to GDrive")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("20 secs")
+            .build();
+
+    public static final PropertyDescriptor READ_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Read Timeout")
+            .displayName("Read Timeout")
+            .description("Maximum time to wait for data from GDrive on an open connection")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("20 secs")
+            .build();
+
+    public static final PropertyDescriptor COMPRESS_RESPONSES = new PropertyDescriptor.Builder()
+            .name("Compress Responses")
+            .displayName("Compress Responses")
+            .description("Whether to ask GDrive for gzip-compressed (JSON) responses - saves a lot of bandwidth for listings and metadata at little CPU cost")
+            .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .build();
+
+    public static final PropertyDescriptor ROOT_URL = new PropertyDescriptor.Builder()
+            .name("Root URL")
+            .displayName("Root URL")
+            .description("Base URL of the Drive API (e.g. http://localhost:8080/ for a local stand-in in tests) - "
+                    + "leave empty to use GDrive itself. Note the OAuth token URL comes from the IAM user JSON (token_uri)")
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .required(false)
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .build();
+
+    public static final List<PropertyDescriptor> properties = Collections.unmodifiableList(Arrays.asList(
+        IAM_USER_JSON, TOKEN_REFRESH_LEAD_TIME, REQUESTS_PER_SECOND, HTTP_TRANSPORT, MAX_CONNECTIONS_PER_ROUTE,
+        CONNECT_TIMEOUT, READ_TIMEOUT, COMPRESS_RESPONSES, ROOT_URL));
+
+    static final int DEFAULT_TIMEOUT_MILLIS = 20000;
+
+    static final long TOKEN_CHECK_INTERVAL_SECONDS = 30;
+
+    private volatile HttpTransport transport;
+    private volatile GoogleCredential credential;
+    private volatile Drive drive;
+    private volatile ScheduledExecutorService tokenRefresher;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return properties;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) throws InitializationException {
+        try {
+            transport = createTransport(context.getProperty(HTTP_TRANSPORT).getValue(), context.getProperty(MAX_CONNECTIONS_PER_ROUTE).asInteger());
+            credential = createCredential(context.getProperty(IAM_USER_JSON).evaluateAttributeExpressions().getValue(), transport);
+            GdriveRateLimiter.forAccount(credential.getServiceAccountId()).setRequestsPerSecond(context.getProperty(REQUESTS_PER_SECOND).asInteger());
+            drive = createDrive(transport, credential,
+                    context.getProperty(CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+                    context.getProperty(READ_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+                    context.getProperty(COMPRESS_RESPONSES).asBoolean(),
+                    context.getProperty(ROOT_URL).evaluateAttributeExpressions().getValue());
+        } catch (IOException | GeneralSecurityException e) {
+            throw new InitializationException("Failed to create GDrive client", e);
+        }
+        final long leadTimeSeconds = context.getProperty(TOKEN_REFRESH_LEAD_TIME).asTimePeriod(TimeUnit.SECONDS);
+        tokenRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "GDrive token refresher " + getIdentifier());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // first run right away: the first FlowFile should already find a valid token
+        tokenRefresher.scheduleWithFixedDelay(() -> refreshTokenIfExpiring(leadTimeSeconds), 0, TOKEN_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        if (null != tokenRefresher) {
+            tokenRefresher.shutdownNow();
+            tokenRefresher = null;
+        }
+        drive = null;
+        credential = null;
+        if (null != transport) {
+            try {
+                transport.shutdown(); // (closes pooled connections)
+            } catch (IOException e) {
+                getLogger().warn("Failed to shut down HTTP transport due to {}", new Object[] {e}, e);
+            }
+            transport = null;
+        }
+    }
+
+    @Override
+    public Drive getDrive() {
+        return drive;
+    }
+
+    void refreshTokenIfExpiring(long leadTimeSeconds) {
+        final GoogleCredential currentCredential = credential;
+        if (null == currentCredential) {
+            return;
+        }
+        final Long expiresInSeconds = currentCredential.getExpiresInSeconds();
+        if (null != currentCredential.getAccessToken() && null != expiresInSeconds && expiresInSeconds > leadTimeSeconds) {
+            return;
+        }
+        try {
+            getLogger().trace("Refreshing access token (expires in {} s)", new Object[] {expiresInSeconds});
+            currentCredential.refreshToken();
+        } catch (final Exception e) { // (the client will try again on the next request)
+            getLogger().warn("Failed to refresh access token due to {}", new Object[] {e}, e);
+        }
+    }
+
+    static GoogleCredential createCredential(String iamUserJson, HttpTransport transport) throws IOException {
+        final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+        // get IAM file and provide it as stream (like we'll store it as secret in NiFi)
+        return GoogleCredential
+                .fromStream(new ByteArrayInputStream(iamUserJson.getBytes(StandardCharsets.UTF_8)), transport, jsonFactory)
+                .createScoped(Collections.singletonList(AbstractGdriveProcessor.HTTPS_WWW_GOOGLEAPIS_COM_AUTH_DRIVE));
+    }
+
+    // (the params API is deprecated since httpclient 4.3 - but ApacheHttpTransport of google-http-client 1.23 builds a DefaultHttpClient
+    // configured by it; both are still in the 4.5.x httpclient pinned in the pom)
+    @SuppressWarnings("deprecation")
+    static HttpTransport createTransport(String transportType, int maxConnectionsPerRoute) throws IOException, GeneralSecurityException {
+        if (!TRANSPORT_APACHE.getValue().equals(transportType)) {
+            return GoogleNetHttpTransport.newTrustedTransport();
+        }
+        final ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder().trustCertificates(GoogleUtils.getCertificateTrustStore());
+        final HttpParams params = builder.getHttpParams();
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerRoute));
+        ConnManagerParams.setMaxTotalConnections(params, Math.max(maxConnectionsPerRoute, ConnManagerParams.getMaxTotalConnections(params)));
+        // (pooled connections might have been closed by GDrive meanwhile - check before re-using them)
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        return builder.build();
+    }
+
+    static Drive createDrive(HttpTransport transport, GoogleCredential credential) {
+        return createDrive(transport, credential, DEFAULT_TIMEOUT_MILLIS, DEFAULT_TIMEOUT_MILLIS, true, null);
+    }
+
+    static Drive createDrive(HttpTransport transport, GoogleCredential credential, GdriveRateLimiter rateLimiter) {
+        return createDrive(transport, credential, rateLimiter, DEFAULT_TIMEOUT_MILLIS, DEFAULT_TIMEOUT_MILLIS, true, null);
+    }
+
+    static Drive createDrive(HttpTransport transport, GoogleCredential credential, int connectTimeoutMillis, int readTimeoutMillis, boolean compressResponses,
+                             String rootUrl) {
+        return createDrive(transport, credential, GdriveRateLimiter.forAccount(credential.getServiceAccountId()), connectTimeoutMillis, readTimeoutMillis,
+                compressResponses, rootUrl);
+    }
+
+    static Drive createDrive(HttpTransport transport, GoogleCredential credential, GdriveRateLimiter rateLimiter, int connectTimeoutMillis, int readTimeoutMillis,
+                             boolean compressResponses, String rootUrl) {
+        final Drive.Builder builder = new Drive.Builder(transport, JacksonFactory.getDefaultInstance(),
+                new DriveRequestInitializer(credential, rateLimiter, connectTimeoutMillis, readTimeoutMillis))
+                // (Accept-Encoding: gzip is sent anyway, but Google only compresses for user agents containing "gzip")
+                .setApplicationName(compressResponses ? "NiFi (gzip)" : "NiFi");
+        if (null != rootUrl) { // (uploads and batches are relative to the root URL, too)
+            builder.setRootUrl(rootUrl.endsWith("/") ? rootUrl : rootUrl + "/");
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the rate limiter the requests of the client go through (null if the client was not created here)
+     */
+    static GdriveRateLimiter rateLimiterOf(AbstractGoogleClient client) {
+        final HttpRequestInitializer initializer = null == client.getRequestFactory() ? null : client.getRequestFactory().getInitializer();
+        return initializer instanceof DriveRequestInitializer ? ((DriveRequestInitializer) initializer).rateLimiter : null;
+    }
+
+    /**
+     * Sets up every request of a Drive client: credential, timeouts, retries and the rate limiter of the IAM user
+     */
+    static class DriveRequestInitializer implements HttpRequestInitializer {
+        private final GoogleCredential credential;
+        private final GdriveRateLimiter rateLimiter;
+        private final int connectTimeoutMillis;
+        private final int readTimeoutMillis;
+
+        DriveRequestInitializer(GoogleCredential credential, GdriveRateLimiter rateLimiter, int connectTimeoutMillis, int readTimeoutMillis) {
+            this.credential = credential;
+            this.rateLimiter = rateLimiter;
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.readTimeoutMillis = readTimeoutMillis;
+        }
+
+        @Override
+        public void initialize(HttpRequest request) throws IOException {
+            credential.initialize(request);
+            request.setConnectTimeout(connectTimeoutMillis);
+            request.setReadTimeout(readTimeoutMillis);
+            // retry on network errors (resumable uploads continue with the failed chunk)
+            request.setIOExceptionHandler(new HttpBackOffIOExceptionHandler(new ExponentialBackOff()));
+            // take a token before sending and retry on rate limit errors (the limiter holds back the retry - and all other requests of the IAM user)
+            rateLimiter.initialize(request);
+        }
+    }
+}
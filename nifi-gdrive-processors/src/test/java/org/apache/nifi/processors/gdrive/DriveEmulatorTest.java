@@ -0,0 +1,326 @@
+package org.apache.nifi.processors.gdrive;
+
+import com.google.api.services.drive.model.File;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.processor.Processor;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * The processors against the local Drive emulator (real HTTP, real client service)
+ */
+public class DriveEmulatorTest {
+
+    DriveEmulator emulator;
+    String iamUserJson;
+
+    @Before
+    public void setup() throws Exception {
+        emulator = new DriveEmulator();
+        emulator.addFolder("root", "root", null);
+        iamUserJson = emulator.createIamUserJson();
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void testPutListFetch() throws Exception {
+        final byte[] large = new byte[600 * 1024];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        final TestRunner put = newRunner(new PutGdrive());
+        put.setProperty(PutGdrive.FOLDER, "root");
+        put.setProperty(PutGdrive.RESUMABLE_UPLOAD_THRESHOLD, "100 KB");
+        put.setProperty(PutGdrive.UPLOAD_CHUNK_SIZE, "256 KB");
+        put.enqueue("hello".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("filename", "a/b/small.txt"));
+        put.enqueue(large, Collections.singletonMap("filename", "a/large.bin"));
+        put.run(2);
+        put.assertAllFlowFilesTransferred(PutGdrive.REL_SUCCESS, 2);
+        final File folderA = emulator.findChild("root", "a");
+        assertNotNull(folderA);
+        assertEquals(DriveEmulator.FOLDER_MIME_TYPE, folderA.getMimeType());
+        assertEquals("hello", new String(emulator.getContent(emulator.findChild(emulator.findChild(folderA.getId(), "b").getId(), "small.txt").getId()), StandardCharsets.UTF_8));
+        assertArrayEquals(large, emulator.getContent(emulator.findChild(folderA.getId(), "large.bin").getId()));
+        assertEquals(4, emulator.getRequestCount("PUT resumable")); // (status query + 3 chunks)
+
+        // (one page per entry)
+        final TestRunner list = newRunner(new ListGdrive());
+        list.setProperty(ListGdrive.FOLDER, "root");
+        list.setProperty(ListGdrive.RECURSIVE_SEARCH, "true");
+        list.setProperty(ListGdrive.BATCH_SIZE, "1");
+        list.run();
+        list.assertAllFlowFilesTransferred(ListGdrive.REL_SUCCESS, 4); // (a, a/b, a/b/small.txt, a/large.bin)
+        final MockFlowFile listedSmall = find(list.getFlowFilesForRelationship(ListGdrive.REL_SUCCESS), ff -> "small.txt".equals(ff.getAttribute("filename")));
+        listedSmall.assertAttributeEquals("file.path", "a/b/small.txt");
+
+        final TestRunner fetch = newRunner(new FetchGdrive());
+        fetch.setProperty(FetchGdrive.FILE, "${fileid}");
+        fetch.enqueue(new byte[0], listedSmall.getAttributes());
+        fetch.run();
+        fetch.assertAllFlowFilesTransferred(FetchGdrive.REL_SUCCESS, 1);
+        fetch.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS).get(0).assertContentEquals("hello");
+    }
+
+    @Test
+    public void testUpdateAndChanges() throws Exception {
+        final TestRunner list = newRunner(new ListGdrive());
+        list.setProperty(ListGdrive.FOLDER, "root");
+        list.setProperty(ListGdrive.LISTING_STRATEGY, ListGdrive.STRATEGY_CHANGES.getValue());
+        list.run(); // (takes the start page token)
+        list.clearTransferState();
+
+        final TestRunner put = newRunner(new PutGdrive());
+        put.setProperty(PutGdrive.FOLDER, "root");
+        put.enqueue("v1", Collections.singletonMap("filename", "file.txt"));
+        put.enqueue("v2", Collections.singletonMap("filename", "file.txt"));
+        put.run(2);
+        put.assertAllFlowFilesTransferred(PutGdrive.REL_SUCCESS, 2);
+        put.getFlowFilesForRelationship(PutGdrive.REL_SUCCESS).get(1).assertAttributeEquals("file.created", "false");
+        final File file = emulator.findChild("root", "file.txt");
+        assertEquals("v2", new String(emulator.getContent(file.getId()), StandardCharsets.UTF_8));
+        assertEquals(Long.valueOf(2), file.getVersion());
+
+        list.run();
+        assertEquals(1, list.getFlowFilesForRelationship(ListGdrive.REL_SUCCESS).size());
+    }
+
+    @Test
+    public void testConcurrentUploads() throws Exception {
+        emulator.addFolder("a", "a", "root");
+        emulator.setLatency(50, TimeUnit.MILLISECONDS);
+        final TestRunner put = newRunner(new PutGdrive());
+        put.setProperty(PutGdrive.FOLDER, "root");
+        put.setProperty(PutGdrive.UPLOAD_BATCH_SIZE, "8");
+        put.setProperty(PutGdrive.CONCURRENT_UPLOADS, "4");
+        put.setProperty(PutGdrive.SKIP_UNCHANGED, "true");
+        for (int i = 0; i < 8; i++) {
+            put.enqueue("content " + i, Collections.singletonMap("filename", "a/file" + i + ".txt"));
+        }
+        put.run(); // (one batch)
+        put.assertAllFlowFilesTransferred(PutGdrive.REL_SUCCESS, 8);
+        assertEquals(8, put.getCounterValue("GDrive files uploaded").longValue());
+        for (int i = 0; i < 8; i++) {
+            assertEquals("content " + i, new String(emulator.getContent(emulator.findChild("a", "file" + i + ".txt").getId()), StandardCharsets.UTF_8));
+        }
+        put.clearTransferState();
+
+        put.enqueue("content 0", Collections.singletonMap("filename", "a/file0.txt"));
+        put.enqueue("changed", Collections.singletonMap("filename", "a/file1.txt"));
+        put.run();
+        put.assertAllFlowFilesTransferred(PutGdrive.REL_SUCCESS, 2);
+        find(put.getFlowFilesForRelationship(PutGdrive.REL_SUCCESS), ff -> "a/file0.txt".equals(ff.getAttribute("filename"))).assertAttributeEquals("file.unchanged", "true");
+        find(put.getFlowFilesForRelationship(PutGdrive.REL_SUCCESS), ff -> "a/file1.txt".equals(ff.getAttribute("filename"))).assertAttributeEquals("file.unchanged", "false");
+    }
+
+    @Test
+    public void testConcurrentUploadsCreateFoldersOnce() throws Exception {
+        emulator.setLatency(50, TimeUnit.MILLISECONDS);
+        final TestRunner put = newRunner(new PutGdrive());
+        put.setProperty(PutGdrive.FOLDER, "root");
+        put.setProperty(PutGdrive.UPLOAD_BATCH_SIZE, "8");
+        put.setProperty(PutGdrive.CONCURRENT_UPLOADS, "8");
+        for (int i = 0; i < 8; i++) {
+            put.enqueue("content " + i, Collections.singletonMap("filename", "a/b/file" + i + ".txt"));
+        }
+        put.run();
+        put.assertAllFlowFilesTransferred(PutGdrive.REL_SUCCESS, 8);
+        assertEquals(1, emulator.countChildren("root", "a"));
+        final File folderA = emulator.findChild("root", "a");
+        assertEquals(1, emulator.countChildren(folderA.getId(), "b"));
+        assertEquals(2, put.getCounterValue("GDrive folders created").longValue());
+        for (int i = 0; i < 8; i++) {
+            assertNotNull(emulator.findChild(emulator.findChild(folderA.getId(), "b").getId(), "file" + i + ".txt"));
+        }
+    }
+
+    @Test
+    public void testInterruptedListingResumes() throws Exception {
+        emulator.addFile(null, "file1.txt", "text/plain", "root", new byte[1]);
+        final File folderA = emulator.addFolder(null, "a", "root");
+        emulator.addFile(null, "file2.txt", "text/plain", folderA.getId(), new byte[1]);
+        final File folderB = emulator.addFolder(null, "b", folderA.getId());
+        emulator.addFile(null, "file3.txt", "text/plain", folderB.getId(), new byte[1]);
+        final File folderC = emulator.addFolder(null, "c", "root");
+        emulator.addFile(null, "file4.txt", "text/plain", folderC.getId(), new byte[1]);
+        final TestRunner list = newRunner(new ListGdrive());
+        list.setProperty(ListGdrive.FOLDER, "root");
+        list.setProperty(ListGdrive.RECURSIVE_SEARCH, "true");
+        list.setProperty(ListGdrive.BATCH_SIZE, "1"); // (one page per entry - and a checkpoint after each)
+        emulator.failRequestsAfter(3, 503);
+        list.run();
+        assertEquals(Arrays.asList("a", "a/file2.txt", "file1.txt"), listedPaths(list));
+        assertFalse(list.getStateManager().getState(Scope.LOCAL).toMap().isEmpty());
+        list.clearTransferState();
+
+        list.run();
+        assertEquals(Arrays.asList("a/b", "a/b/file3.txt", "c", "c/file4.txt"), listedPaths(list));
+        assertEquals(1, list.getCounterValue("GDrive listings resumed").longValue());
+        assertTrue(list.getStateManager().getState(Scope.LOCAL).toMap().isEmpty());
+        assertEquals(4 + 4, emulator.getRequestCount("GET files")); // (3 pages and the failed one - then the other 4 of 7 pages, none twice)
+    }
+
+    @Test
+    public void testFlatListing() throws Exception {
+        emulator.addFile(null, "file1.txt", "text/plain", "root", new byte[1]);
+        final File folderA = emulator.addFolder(null, "a", "root");
+        emulator.addFile(null, "file2.txt", "text/plain", folderA.getId(), new byte[1]);
+        final File folderB = emulator.addFolder(null, "b", folderA.getId());
+        emulator.addFile(null, "file3.txt", "text/plain", folderB.getId(), new byte[1]);
+        final File elsewhere = emulator.addFolder(null, "elsewhere", null);
+        emulator.addFile(null, "other.txt", "text/plain", elsewhere.getId(), new byte[1]);
+        final TestRunner traversal = newRunner(new ListGdrive());
+        traversal.setProperty(ListGdrive.FOLDER, "root");
+        traversal.setProperty(ListGdrive.RECURSIVE_SEARCH, "true");
+        traversal.run();
+        final int traversalRequests = emulator.getRequestCount("GET files");
+
+        final TestRunner flat = newRunner(new ListGdrive());
+        flat.setProperty(ListGdrive.FOLDER, "root");
+        flat.setProperty(ListGdrive.RECURSIVE_SEARCH, "true");
+        flat.setProperty(ListGdrive.LISTING_STRATEGY, ListGdrive.STRATEGY_FLAT.getValue());
+        flat.run();
+        assertEquals(listedPaths(traversal), listedPaths(flat));
+        assertEquals(Arrays.asList("a", "a/b", "a/b/file3.txt", "a/file2.txt", "file1.txt"), listedPaths(flat));
+        for (String attribute : Arrays.asList("fileid", "created", "modified", "mime.type", "is.folder", "file.parent.folder")) { // (folders rebuilt from their nodes)
+            assertEquals(find(traversal.getFlowFilesForRelationship(ListGdrive.REL_SUCCESS), ff -> "a/b".equals(ff.getAttribute("file.path"))).getAttribute(attribute),
+                    find(flat.getFlowFilesForRelationship(ListGdrive.REL_SUCCESS), ff -> "a/b".equals(ff.getAttribute("file.path"))).getAttribute(attribute));
+        }
+        assertEquals(3, traversalRequests); // (one per folder)
+        assertEquals(2, emulator.getRequestCount("GET files") - traversalRequests); // (folders, then files)
+        flat.clearTransferState();
+
+        flat.run();
+        flat.assertTransferCount(ListGdrive.REL_SUCCESS, 0);
+        emulator.addFile(null, "file4.txt", "text/plain", folderB.getId(), new byte[1]);
+        flat.run();
+        assertEquals(Collections.singletonList("a/b/file4.txt"), listedPaths(flat));
+
+        flat.setProperty(ListGdrive.RECURSIVE_SEARCH, "false");
+        flat.assertNotValid();
+    }
+
+    @Test
+    public void testFetchByPath() throws Exception {
+        final File folderA = emulator.addFolder(null, "a", "root");
+        final File folderB = emulator.addFolder(null, "b", folderA.getId());
+        emulator.addFile(null, "file1.txt", "text/plain", folderB.getId(), "content 1".getBytes(StandardCharsets.UTF_8));
+        emulator.addFile(null, "file2.txt", "text/plain", folderB.getId(), "content 2".getBytes(StandardCharsets.UTF_8));
+        final TestRunner fetch = newRunner(new FetchGdrive());
+        fetch.setProperty(FetchGdrive.LOOKUP_MODE, FetchGdrive.LOOKUP_PATH.getValue());
+        fetch.setProperty(FetchGdrive.FILE, "${path}");
+        fetch.assertNotValid(); // (no folder)
+        fetch.setProperty(FetchGdrive.FOLDER, "root");
+        fetch.enqueue(new byte[0], Collections.singletonMap("path", "a/b/file1.txt"));
+        fetch.enqueue(new byte[0], Collections.singletonMap("path", "/a/b/file2.txt"));
+        fetch.enqueue(new byte[0], Collections.singletonMap("path", "a/missing.txt"));
+        fetch.run(1, false); // (keep the cache)
+        fetch.assertTransferCount(FetchGdrive.REL_SUCCESS, 2);
+        fetch.assertTransferCount(FetchGdrive.REL_FAILURE, 1);
+        find(fetch.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS), ff -> "file1.txt".equals(ff.getAttribute("filename"))).assertContentEquals("content 1");
+        find(fetch.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS), ff -> "file2.txt".equals(ff.getAttribute("filename"))).assertContentEquals("content 2");
+        assertEquals(3 + 1 + 1 + 2, fetch.getCounterValue("GDrive path lookups").longValue()); // (a, b, file1.txt - then file2.txt and missing.txt, the latter once more without the cache)
+        assertEquals(2 + 1, fetch.getCounterValue("GDrive path cache hits").longValue());
+        fetch.clearTransferState();
+
+        fetch.enqueue(new byte[0], Collections.singletonMap("path", "a/b/file1.txt"));
+        fetch.run(1, true, false);
+        fetch.assertAllFlowFilesTransferred(FetchGdrive.REL_SUCCESS, 1);
+        assertEquals(7, fetch.getCounterValue("GDrive path lookups").longValue()); // (all cached)
+    }
+
+    @Test
+    public void testPartialFetch() throws Exception {
+        emulator.addFile("0815", "data.csv", "text/csv", "root", "header\nrow 1\nrow 2\n".getBytes(StandardCharsets.UTF_8));
+        final TestRunner fetch = newRunner(new FetchGdrive());
+        fetch.setProperty(FetchGdrive.FILE, "0815");
+        fetch.setProperty(FetchGdrive.RANGE_START, "${start}");
+        fetch.setProperty(FetchGdrive.MAX_BYTES, "${max}");
+        fetch.enqueue(new byte[0], Collections.singletonMap("max", "6 B")); // (head)
+        final Map<String, String> middle = new HashMap<>();
+        middle.put("start", "7");
+        middle.put("max", "5 B");
+        fetch.enqueue(new byte[0], middle);
+        fetch.enqueue(new byte[0], Collections.singletonMap("start", "13")); // (tail)
+        fetch.enqueue(new byte[0], Collections.singletonMap("start", "100")); // (beyond the end)
+        fetch.run();
+        fetch.assertAllFlowFilesTransferred(FetchGdrive.REL_SUCCESS, 4);
+        final List<MockFlowFile> fetched = fetch.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS);
+        fetched.get(0).assertContentEquals("header");
+        fetched.get(0).assertAttributeEquals("range.start", "0");
+        fetched.get(0).assertAttributeEquals("range.end", "5");
+        fetched.get(0).assertAttributeEquals("range.length", "6");
+        fetched.get(0).assertAttributeEquals("file.size", "19");
+        fetched.get(1).assertContentEquals("row 1");
+        fetched.get(1).assertAttributeEquals("range.end", "11");
+        fetched.get(2).assertContentEquals("row 2\n");
+        fetched.get(2).assertAttributeEquals("range.end", "18");
+        fetched.get(3).assertContentEquals("");
+        fetched.get(3).assertAttributeEquals("range.length", "0");
+        fetched.get(3).assertAttributeNotExists("range.end");
+        assertEquals(3, emulator.getRequestCount("GET media")); // (none beyond the end)
+        assertEquals(6 + 5 + 6, fetch.getCounterValue("GDrive bytes fetched").longValue());
+    }
+
+    @Test
+    public void testRateLimitedRequestIsRetried() throws Exception {
+        emulator.addFile("0815", "file.txt", "text/plain", "root", "content".getBytes(StandardCharsets.UTF_8));
+        emulator.failNextRequests(429);
+        final TestRunner fetch = newRunner(new FetchGdrive());
+        fetch.setProperty(FetchGdrive.FILE, "0815");
+        fetch.enqueue(new byte[0]);
+        fetch.run();
+        fetch.assertAllFlowFilesTransferred(FetchGdrive.REL_SUCCESS, 1);
+        fetch.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS).get(0).assertContentEquals("content");
+        assertEquals(2, emulator.getRequestCount("GET files")); // (the metadata request twice)
+    }
+
+    @Test
+    public void testServerErrorFails() throws Exception {
+        emulator.addFile("0815", "file.txt", "text/plain", "root", "content".getBytes(StandardCharsets.UTF_8));
+        emulator.setErrorRate(1, 503);
+        final TestRunner fetch = newRunner(new FetchGdrive());
+        fetch.setProperty(FetchGdrive.FILE, "0815");
+        fetch.enqueue(new byte[0]);
+        fetch.run();
+        fetch.assertAllFlowFilesTransferred(FetchGdrive.REL_FAILURE, 1);
+    }
+
+    private TestRunner newRunner(Processor processor) throws Exception {
+        final TestRunner runner = TestRunners.newTestRunner(processor);
+        final StandardGdriveClientService service = new StandardGdriveClientService();
+        runner.addControllerService("gdrive", service);
+        runner.setProperty(service, StandardGdriveClientService.IAM_USER_JSON, iamUserJson);
+        runner.setProperty(service, StandardGdriveClientService.ROOT_URL, emulator.getRootUrl());
+        runner.enableControllerService(service);
+        runner.setProperty(AbstractGdriveProcessor.GDRIVE_CLIENT_SERVICE, "gdrive");
+        return runner;
+    }
+
+    private static List<String> listedPaths(TestRunner runner) {
+        return runner.getFlowFilesForRelationship(ListGdrive.REL_SUCCESS).stream().map(ff -> ff.getAttribute("file.path")).sorted().collect(Collectors.toList());
+    }
+
+    private static MockFlowFile find(List<MockFlowFile> flowFiles, Predicate<MockFlowFile> predicate) {
+        return flowFiles.stream().filter(predicate).findFirst().orElseThrow(AssertionError::new);
+    }
+}
@@ -1,10 +1,25 @@
 package org.apache.nifi.processors.gdrive;
 
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
 import com.google.api.client.util.DateTime;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.Drive.Files;
 import com.google.api.services.drive.Drive.Files.Get;
 import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Serializer;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
@@ -14,11 +29,23 @@ import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 import static org.junit.Assert.*;
 
@@ -63,6 +90,9 @@ public class FetchGdriveTest {
         assertEquals("TEST", flowFile.getContent());
         assertEquals("test/bla", flowFile.getAttribute("mime.type"));
         Mockito.verify(getMock).execute();
+        assertEquals(4, runner.getCounterValue("GDrive bytes fetched").longValue());
+        assertEquals(1, processor.getMetrics().getLatency("metadata").getCount());
+        assertEquals(1, processor.getMetrics().getLatency("media").getCount());
     }
 
     @Test
@@ -75,6 +105,406 @@ public class FetchGdriveTest {
         assertTrue(runner.getLogger().getErrorMessages().get(0).getMsg().contains("Failed to fetch contents"));
     }
 
+    @Test
+    public void testFetchUsingIncomingAttributes() throws Exception {
+        runner.setProperty(FetchGdrive.USE_INCOMING_ATTRIBUTES, "true");
+        final Map<String, String> attrs = new HashMap<>();
+        attrs.put("filename", "listed-file");
+        attrs.put("modified", modifiedTime.toStringRfc3339());
+        attrs.put("mime.type", "test/listed");
+        runner.enqueue("whatever", attrs);
+        runner.run();
+        runner.assertTransferCount(FetchGdrive.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = runner.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS).get(0);
+        assertEquals("TEST", flowFile.getContent());
+        assertEquals("listed-file", flowFile.getAttribute("filename"));
+        assertEquals("x-file", flowFile.getAttribute("fileid"));
+        Mockito.verify(getMock, Mockito.never()).execute();
+        Mockito.verify(getMock).executeMediaAsInputStream();
+    }
+
+    @Test
+    public void testFetchUsingIncomingAttributesFallback() throws Exception {
+        runner.setProperty(FetchGdrive.USE_INCOMING_ATTRIBUTES, "true");
+        runner.enqueue("whatever", Collections.singletonMap("filename", "listed-file")); // (rest missing)
+        runner.run();
+        runner.assertTransferCount(FetchGdrive.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = runner.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS).get(0);
+        assertEquals("x-file", flowFile.getAttribute("filename"));
+        assertEquals("test/bla", flowFile.getAttribute("mime.type"));
+        Mockito.verify(getMock).execute();
+    }
+
+    @Test
+    public void testFetchByPathRetriesWithoutStaleCache() throws Exception {
+        final Map<String, String> children = new HashMap<>(); // (query -> id)
+        children.put("name = 'a' and 'root' in parents and trashed = false", "A");
+        children.put("name = 'x-file' and 'A' in parents and trashed = false", "0815");
+        final List<String> queries = new ArrayList<>();
+        final Drive.Files.List listMock = Mockito.mock(Drive.Files.List.class);
+        Mockito.when(filesMock.list()).thenReturn(listMock);
+        Mockito.when(listMock.setQ(Mockito.anyString())).thenAnswer((InvocationOnMock inv) -> {
+            queries.add(inv.getArgument(0));
+            return listMock;
+        });
+        Mockito.when(listMock.setPageSize(Mockito.anyInt())).thenReturn(listMock);
+        Mockito.when(listMock.setFields(Mockito.anyString())).thenReturn(listMock);
+        Mockito.when(listMock.execute()).thenAnswer((InvocationOnMock inv) -> {
+            final String id = children.get(queries.get(queries.size() - 1));
+            return new FileList().setFiles(null == id ? Collections.emptyList() : Collections.singletonList(new File().setId(id)));
+        });
+        runner.setProperty(FetchGdrive.LOOKUP_MODE, FetchGdrive.LOOKUP_PATH.getValue());
+        runner.setProperty(FetchGdrive.FOLDER, "root");
+        runner.setProperty(FetchGdrive.FILE, "a/x-file");
+        runner.enqueue("whatever");
+        runner.run(1, false); // (keep the path cache)
+        runner.assertTransferCount(FetchGdrive.REL_SUCCESS, 1);
+        assertEquals(2, queries.size());
+
+        // a replaced by a new folder: the cached id of a is stale now - y-file only in the new one
+        children.put("name = 'a' and 'root' in parents and trashed = false", "A2");
+        children.put("name = 'y-file' and 'A2' in parents and trashed = false", "4711");
+        runner.setProperty(FetchGdrive.FILE, "a/y-file");
+        runner.enqueue("whatever");
+        runner.run(1, true, false);
+        runner.assertTransferCount(FetchGdrive.REL_SUCCESS, 2);
+        assertEquals(Arrays.asList("name = 'y-file' and 'A' in parents and trashed = false", // (a from cache)
+                "name = 'a' and 'root' in parents and trashed = false", "name = 'y-file' and 'A2' in parents and trashed = false"),
+                queries.subList(2, queries.size()));
+        Mockito.verify(filesMock).get("4711");
+    }
+
+    @Test
+    public void testFetchByPathWithIncomingAttributesRetriesOnMediaNotFound() throws Exception {
+        final Map<String, String> children = new HashMap<>(); // (query -> id)
+        children.put("name = 'a' and 'root' in parents and trashed = false", "A");
+        children.put("name = 'x-file' and 'A' in parents and trashed = false", "0815");
+        final List<String> queries = new ArrayList<>();
+        final Drive.Files.List listMock = Mockito.mock(Drive.Files.List.class);
+        Mockito.when(filesMock.list()).thenReturn(listMock);
+        Mockito.when(listMock.setQ(Mockito.anyString())).thenAnswer((InvocationOnMock inv) -> {
+            queries.add(inv.getArgument(0));
+            return listMock;
+        });
+        Mockito.when(listMock.setPageSize(Mockito.anyInt())).thenReturn(listMock);
+        Mockito.when(listMock.setFields(Mockito.anyString())).thenReturn(listMock);
+        Mockito.when(listMock.execute()).thenAnswer((InvocationOnMock inv) -> {
+            final String id = children.get(queries.get(queries.size() - 1));
+            return new FileList().setFiles(null == id ? Collections.emptyList() : Collections.singletonList(new File().setId(id)));
+        });
+        final Map<String, String> attributes = new HashMap<>(); // (as listed - no metadata request needed)
+        attributes.put("filename", "x-file");
+        attributes.put("modified", modifiedTime.toStringRfc3339());
+        attributes.put("mime.type", "test/bla");
+        runner.setProperty(FetchGdrive.LOOKUP_MODE, FetchGdrive.LOOKUP_PATH.getValue());
+        runner.setProperty(FetchGdrive.FOLDER, "root");
+        runner.setProperty(FetchGdrive.FILE, "a/x-file");
+        runner.setProperty(FetchGdrive.USE_INCOMING_ATTRIBUTES, "true");
+        runner.enqueue("whatever", attributes);
+        runner.run(1, false); // (keep the path cache)
+        runner.assertTransferCount(FetchGdrive.REL_SUCCESS, 1);
+        Mockito.verify(getMock, Mockito.never()).execute();
+
+        // x-file replaced by a new one: the cached id is stale now - and only the media request tells
+        children.put("name = 'x-file' and 'A' in parents and trashed = false", "4711");
+        Mockito.when(getMock.executeMediaAsInputStream())
+                .thenThrow(new GoogleJsonResponseException(new HttpResponseException.Builder(404, "Not Found", new HttpHeaders()), null));
+        final Get newGetMock = Mockito.mock(Get.class);
+        Mockito.when(filesMock.get("4711")).thenReturn(newGetMock);
+        Mockito.when(newGetMock.setFields(Mockito.anyString())).thenReturn(newGetMock);
+        Mockito.when(newGetMock.execute()).thenReturn(new File().setName("x-file").setId("4711").setCreatedTime(createdTime).setModifiedTime(modifiedTime)
+                .setMimeType("test/bla"));
+        Mockito.when(newGetMock.executeMediaAsInputStream()).thenReturn(new ByteArrayInputStream("NEW".getBytes(StandardCharsets.UTF_8)));
+        runner.enqueue("whatever", attributes);
+        runner.run(1, true, false);
+        runner.assertTransferCount(FetchGdrive.REL_SUCCESS, 2);
+        runner.assertTransferCount(FetchGdrive.REL_FAILURE, 0);
+        final MockFlowFile flowFile = runner.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS).get(1);
+        flowFile.assertContentEquals("NEW");
+        flowFile.assertAttributeEquals("fileid", "4711");
+        assertEquals(Arrays.asList("name = 'a' and 'root' in parents and trashed = false", "name = 'x-file' and 'A' in parents and trashed = false"),
+                queries.subList(2, queries.size())); // (both from cache first - then both again)
+        Mockito.verify(newGetMock).execute(); // (the incoming attributes describe the stale file)
+    }
+
+    @Test
+    public void testBatchFetchWithPartialFailure() throws Exception {
+        final Get failingGetMock = Mockito.mock(Get.class);
+        Mockito.when(filesMock.get("bad")).thenReturn(failingGetMock);
+        Mockito.when(failingGetMock.setFields(Mockito.anyString())).thenReturn(failingGetMock);
+        Mockito.when(failingGetMock.execute()).thenThrow(IOException.class);
+        runner.setProperty(FetchGdrive.FILE, "${id}");
+        runner.setProperty(FetchGdrive.BATCH_SIZE, "5");
+        runner.enqueue("whatever", Collections.singletonMap("id", "good1"));
+        runner.enqueue("whatever", Collections.singletonMap("id", "bad"));
+        runner.enqueue("whatever", Collections.singletonMap("id", "good2"));
+        runner.run(); // (one run for all)
+        runner.assertTransferCount(FetchGdrive.REL_SUCCESS, 2);
+        runner.assertTransferCount(FetchGdrive.REL_FAILURE, 1);
+        runner.assertQueueEmpty();
+        assertEquals("bad", runner.getFlowFilesForRelationship(FetchGdrive.REL_FAILURE).get(0).getAttribute("id"));
+    }
+
+    @Test
+    public void testParallelRangedDownload() throws Exception {
+        final byte[] content = new byte[1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+        final TestRunner rangeRunner = runnerWith(transportAnswering(request -> {
+            if (!request.getUrl().contains("alt=media")) {
+                return metadataResponse("big-file", 1000);
+            }
+            final String range = request.getFirstHeaderValue("Range");
+            ranges.add(range);
+            final String[] startEnd = range.substring("bytes=".length()).split("-");
+            return new MockLowLevelHttpResponse().setStatusCode(206).setContent(Arrays.copyOfRange(content, Integer.parseInt(startEnd[0]), Integer.parseInt(startEnd[1]) + 1));
+        }));
+        rangeRunner.setProperty(FetchGdrive.PARALLEL_DOWNLOAD_THRESHOLD, "100 B");
+        rangeRunner.setProperty(FetchGdrive.DOWNLOAD_CHUNK_SIZE, "300 B");
+        rangeRunner.setProperty(FetchGdrive.DOWNLOAD_CONCURRENCY, "2");
+        rangeRunner.enqueue("whatever");
+        rangeRunner.run();
+        rangeRunner.assertTransferCount(FetchGdrive.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = rangeRunner.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS).get(0);
+        flowFile.assertContentEquals(content);
+        assertEquals("big-file", flowFile.getAttribute("filename"));
+        assertEquals(new HashSet<>(Arrays.asList("bytes=0-299", "bytes=300-599", "bytes=600-899", "bytes=900-999")), new HashSet<>(ranges));
+    }
+
+    @Test
+    public void testParallelDownloadsShareRangeLimit() throws Exception {
+        final byte[] content = new byte[1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        final AtomicInteger rangesRequested = new AtomicInteger();
+        final AtomicInteger maxRangesInMemory = new AtomicInteger();
+        final AtomicReference<Semaphore> permits = new AtomicReference<>();
+        final TestRunner rangeRunner = runnerWith(transportAnswering(request -> {
+            if (!request.getUrl().contains("alt=media")) {
+                return metadataResponse("big-file", 1000);
+            }
+            if (null != permits.get()) { // (every range requested holds a permit until written)
+                maxRangesInMemory.accumulateAndGet(2 - permits.get().availablePermits(), Math::max);
+            }
+            rangesRequested.incrementAndGet();
+            final String[] startEnd = request.getFirstHeaderValue("Range").substring("bytes=".length()).split("-");
+            return new MockLowLevelHttpResponse().setStatusCode(206).setContent(Arrays.copyOfRange(content, Integer.parseInt(startEnd[0]), Integer.parseInt(startEnd[1]) + 1));
+        }));
+        rangeRunner.setProperty(FetchGdrive.PARALLEL_DOWNLOAD_THRESHOLD, "100 B");
+        rangeRunner.setProperty(FetchGdrive.DOWNLOAD_CHUNK_SIZE, "100 B");
+        rangeRunner.setProperty(FetchGdrive.DOWNLOAD_CONCURRENCY, "2");
+        rangeRunner.setProperty(FetchGdrive.BATCH_SIZE, "1");
+        rangeRunner.setThreadCount(4);
+        for (int i = 0; i < 8; i++) {
+            rangeRunner.enqueue("whatever");
+        }
+        final FetchGdrive fetch = (FetchGdrive) rangeRunner.getProcessor();
+        rangeRunner.run(1, false, true);
+        permits.set(fetch.downloadPermits);
+        rangeRunner.run(7, true, false);
+        rangeRunner.assertAllFlowFilesTransferred(FetchGdrive.REL_SUCCESS, 8);
+        for (MockFlowFile flowFile : rangeRunner.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS)) {
+            flowFile.assertContentEquals(content);
+        }
+        assertEquals(8 * 10, rangesRequested.get());
+        assertTrue(maxRangesInMemory.get() > 0 && maxRangesInMemory.get() <= 2);
+        assertEquals(2, fetch.downloadPermits.availablePermits()); // (all released)
+    }
+
+    @Test
+    public void testPartialFetchWhenRangeIsIgnored() throws Exception {
+        final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+        final TestRunner rangeRunner = runnerWith(transportAnswering(request -> {
+            if (!request.getUrl().contains("alt=media")) {
+                return metadataResponse("digits", 10);
+            }
+            ranges.add(request.getFirstHeaderValue("Range"));
+            return new MockLowLevelHttpResponse().setStatusCode(200).setContent("0123456789"); // (whole file regardless)
+        }));
+        rangeRunner.setProperty(FetchGdrive.RANGE_START, "2");
+        rangeRunner.setProperty(FetchGdrive.MAX_BYTES, "3 B");
+        rangeRunner.enqueue("whatever");
+        rangeRunner.run();
+        rangeRunner.assertTransferCount(FetchGdrive.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = rangeRunner.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS).get(0);
+        flowFile.assertContentEquals("234");
+        flowFile.assertAttributeEquals("range.start", "2");
+        flowFile.assertAttributeEquals("range.end", "4");
+        flowFile.assertAttributeEquals("range.length", "3");
+        flowFile.assertAttributeEquals("file.size", "10");
+        assertEquals(Collections.singletonList("bytes=2-4"), ranges);
+    }
+
+    @Test
+    public void testRateLimitedFetchIsRetried() throws Exception {
+        final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        final MockHttpTransport transport = transportAnswering(request -> {
+            requests.add(request.getUrl());
+            if (request.getUrl().contains("alt=media")) {
+                return new MockLowLevelHttpResponse().setContent("TEST");
+            } else if (requests.size() == 1) {
+                return new MockLowLevelHttpResponse().setStatusCode(403).setContentType("application/json").setContent("{\"error\": {\"code\": 403, \"message\": \"User Rate Limit Exceeded\", "
+                        + "\"errors\": [{\"domain\": \"usageLimits\", \"reason\": \"userRateLimitExceeded\", \"message\": \"User Rate Limit Exceeded\"}]}}");
+            }
+            return metadataResponse("x-file", null);
+        });
+        final List<Long> pauses = Collections.synchronizedList(new ArrayList<>());
+        final GdriveRateLimiter rateLimiter = new GdriveRateLimiter(GdriveRateLimiter.DEFAULT_REQUESTS_PER_SECOND, pauses::add); // (no actual waiting)
+        final TestRunner limitedRunner = runnerWith(StandardGdriveClientService.createDrive(transport, new GoogleCredential().setAccessToken("token"), rateLimiter));
+        limitedRunner.enqueue("whatever");
+        limitedRunner.run();
+        limitedRunner.assertTransferCount(FetchGdrive.REL_SUCCESS, 1);
+        limitedRunner.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS).get(0).assertContentEquals("TEST");
+        assertEquals(3, requests.size()); // (metadata twice, then media)
+        assertEquals(1, limitedRunner.getCounterValue(GdriveRateLimiter.COUNTER_RATE_LIMITED).longValue());
+        assertFalse(pauses.isEmpty()); // (the retry waited for the backoff - as does the media request: no time passes)
+        assertTrue(pauses.get(0) >= GdriveRateLimiter.INITIAL_BACKOFF_MILLIS / 2);
+    }
+
+    @Test
+    public void testFetchViaClientService() throws Exception {
+        final FetchGdrive plainProcessor = new FetchGdrive();
+        final TestRunner serviceRunner = TestRunners.newTestRunner(plainProcessor);
+        final GdriveClientServiceForTest clientService = new GdriveClientServiceForTest();
+        serviceRunner.addControllerService("gdrive", clientService);
+        serviceRunner.enableControllerService(clientService);
+        serviceRunner.setProperty(FetchGdrive.FILE, "x-file");
+        serviceRunner.setProperty(FetchGdrive.IAM_USER_JSON, "totally irrelevant");
+        serviceRunner.setProperty(FetchGdrive.GDRIVE_CLIENT_SERVICE, "gdrive");
+        serviceRunner.assertNotValid(); // (both)
+        serviceRunner.removeProperty(FetchGdrive.IAM_USER_JSON);
+        serviceRunner.assertValid();
+        serviceRunner.enqueue("whatever");
+        serviceRunner.enqueue("whatever");
+        serviceRunner.run(2);
+        serviceRunner.assertTransferCount(FetchGdrive.REL_SUCCESS, 2);
+        Mockito.verify(driveMock, Mockito.times(2)).files();
+    }
+
+    @Test
+    public void testSkipUnchangedViaCache() throws Exception {
+        final MapCacheForTest cache = new MapCacheForTest();
+        runner.addControllerService("cache", cache);
+        runner.enableControllerService(cache);
+        runner.setProperty(FetchGdrive.DISTRIBUTED_CACHE_SERVICE, "cache");
+        assertTrue(processor.getRelationships().contains(FetchGdrive.REL_UNCHANGED));
+        fileMeta.setVersion(7L).setMd5Checksum("abc");
+        runner.enqueue("whatever");
+        runner.run();
+        runner.assertTransferCount(FetchGdrive.REL_SUCCESS, 1);
+        assertEquals("7", runner.getFlowFilesForRelationship(FetchGdrive.REL_SUCCESS).get(0).getAttribute("file.version"));
+        assertEquals("7/abc", cache.values.get(FetchGdrive.CACHE_KEY_PREFIX + "x-file"));
+        runner.clearTransferState();
+        runner.enqueue("whatever");
+        runner.run();
+        runner.assertTransferCount(FetchGdrive.REL_SUCCESS, 0);
+        runner.assertTransferCount(FetchGdrive.REL_UNCHANGED, 1);
+        Mockito.verify(getMock, Mockito.times(1)).executeMediaAsInputStream();
+        runner.clearTransferState();
+        fileMeta.setVersion(8L);
+        runner.enqueue("whatever");
+        runner.run();
+        runner.assertTransferCount(FetchGdrive.REL_SUCCESS, 1);
+        Mockito.verify(getMock, Mockito.times(2)).executeMediaAsInputStream();
+        Mockito.verify(getMock, Mockito.times(3)).setFields("id, name, mimeType, createdTime, modifiedTime, size, version, md5Checksum");
+    }
+
+    /**
+     * @return a transport answering each request (url and headers) with the response built for it
+     */
+    static MockHttpTransport transportAnswering(Function<MockLowLevelHttpRequest, MockLowLevelHttpResponse> responder) {
+        return new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() {
+                        return responder.apply(this);
+                    }
+                };
+            }
+        };
+    }
+
+    static MockLowLevelHttpResponse metadataResponse(String name, Integer size) {
+        return new MockLowLevelHttpResponse().setContentType("application/json").setContent("{\"id\": \"0815\", \"name\": \"" + name + "\", \"mimeType\": \"test/bla\", "
+                + "\"createdTime\": \"2021-11-11T00:00:00Z\", \"modifiedTime\": \"2021-12-12T00:00:00Z\"" + (null == size ? "" : ", \"size\": \"" + size + "\"") + "}");
+    }
+
+    static TestRunner runnerWith(MockHttpTransport transport) {
+        return runnerWith(new Drive.Builder(transport, JacksonFactory.getDefaultInstance(), null).setApplicationName("NiFi").build());
+    }
+
+    /**
+     * @return a runner for FetchGdrive of file 0815 using the given (real) Drive client
+     */
+    static TestRunner runnerWith(Drive drive) {
+        final TestRunner runner = TestRunners.newTestRunner(new FetchGdrive() {
+            @Override
+            Drive createDriveService(ProcessContext context) {
+                return drive;
+            }
+        });
+        runner.setProperty(FetchGdrive.IAM_USER_JSON, "totally irrelevant");
+        runner.setProperty(FetchGdrive.FILE, "0815");
+        return runner;
+    }
+
+    static class MapCacheForTest extends AbstractControllerService implements DistributedMapCacheClient {
+        final Map<Object, Object> values = new HashMap<>();
+
+        @Override
+        public <K, V> boolean putIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+            return null == values.putIfAbsent(key, value);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <K, V> V getAndPutIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer, Deserializer<V> valueDeserializer) {
+            return (V) values.putIfAbsent(key, value);
+        }
+
+        @Override
+        public <K> boolean containsKey(K key, Serializer<K> keySerializer) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public <K, V> void put(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+            values.put(key, value);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <K, V> V get(K key, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) {
+            return (V) values.get(key);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public <K> boolean remove(K key, Serializer<K> keySerializer) {
+            return null != values.remove(key);
+        }
+
+        @Override
+        public long removeByPattern(String regex) {
+            return 0;
+        }
+    }
+
+    class GdriveClientServiceForTest extends AbstractControllerService implements GdriveClientService {
+        @Override
+        public Drive getDrive() {
+            return driveMock;
+        }
+    }
+
     class FetchGdriveForTest extends FetchGdrive {
         @Override
         Drive createDriveService(ProcessContext context) throws IOException, GeneralSecurityException {
@@ -0,0 +1,28 @@
+package org.apache.nifi.processors.gdrive;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GdriveMetricsTest {
+
+    @Test
+    public void testPercentiles() {
+        final GdriveMetrics metrics = new GdriveMetrics();
+        for (int i = 1; i <= 100; i++) {
+            metrics.recordLatency("call", TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        final GdriveMetrics.LatencyHistogram histogram = metrics.getLatency("call");
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMeanMillis(), 0.001);
+        assertEquals(100.0, histogram.getMaxMillis(), 0.001);
+        // (bucket bounds are at most 25% off)
+        assertEquals(50, histogram.getPercentileMillis(50), 50 * 0.25);
+        assertEquals(95, histogram.getPercentileMillis(95), 95 * 0.25);
+        assertTrue(histogram.getPercentileMillis(99) <= histogram.getMaxMillis());
+        assertNull(metrics.getLatency("other"));
+        assertTrue(metrics.summary().contains("call: count=100"));
+    }
+}
@@ -0,0 +1,162 @@
+package org.apache.nifi.processors.gdrive;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class GetGdriveMetadataTest {
+
+    static final String BOUNDARY = "batch_boundary";
+
+    final List<String> requestUrls = Collections.synchronizedList(new ArrayList<>());
+    MockHttpTransport transport;
+    TestRunner runner;
+    boolean failBatch = false;
+    String batchContent = part("200 OK", "{\"id\": \"f1\", \"name\": \"file1\", \"mimeType\": \"test/bla\", "
+                    + "\"createdTime\": \"2021-11-11T00:00:00Z\", \"modifiedTime\": \"2021-12-12T00:00:00Z\"}")
+            + part("404 Not Found", "{\"error\": {\"code\": 404, \"message\": \"File not found: f2.\"}}")
+            + part("200 OK", "{\"id\": \"f3\", \"name\": \"file3\", \"mimeType\": \"test/blub\", "
+                    + "\"createdTime\": \"2021-11-11T00:00:00Z\", \"modifiedTime\": \"2021-12-12T00:00:00Z\"}");
+
+    @Before
+    public void setup() {
+        transport = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        requestUrls.add(url);
+                        if (failBatch) {
+                            throw new IOException("network down");
+                        }
+                        final MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                        response.setContentType("multipart/mixed; boundary=" + BOUNDARY).setContent(batchContent + "--" + BOUNDARY + "--\r\n");
+                        return response;
+                    }
+                };
+            }
+        };
+        runner = runnerWith(new Drive.Builder(transport, JacksonFactory.getDefaultInstance(), null).setApplicationName("NiFi").build());
+    }
+
+    static TestRunner runnerWith(Drive drive) {
+        final TestRunner runner = TestRunners.newTestRunner(new GetGdriveMetadata() {
+            @Override
+            Drive createDriveService(ProcessContext context) {
+                return drive;
+            }
+        });
+        runner.setProperty(GetGdriveMetadata.IAM_USER_JSON, "totally irrelevant");
+        runner.setProperty(GetGdriveMetadata.FILE, "${fileid}");
+        return runner;
+    }
+
+    static String part(String status, String json) {
+        return "--" + BOUNDARY + "\r\n"
+                + "Content-Type: application/http\r\n\r\n"
+                + "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: application/json; charset=UTF-8\r\n"
+                + "Content-Length: " + json.length() + "\r\n\r\n"
+                + json + "\r\n";
+    }
+
+    static Map<String, String> fileid(String id) {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("fileid", id);
+        return attributes;
+    }
+
+    @Test
+    public void testBatchMetadata() {
+        runner.enqueue("c1", fileid("f1"));
+        runner.enqueue("c2", fileid("f2"));
+        runner.enqueue("c3", fileid("f3"));
+        runner.run();
+        assertEquals(1, requestUrls.size());
+        assertTrue(requestUrls.get(0).endsWith("/batch/drive/v3"));
+        runner.assertTransferCount(GetGdriveMetadata.REL_SUCCESS, 2);
+        runner.assertTransferCount(GetGdriveMetadata.REL_FAILURE, 1);
+        final List<MockFlowFile> success = runner.getFlowFilesForRelationship(GetGdriveMetadata.REL_SUCCESS);
+        success.get(0).assertContentEquals("c1");
+        success.get(0).assertAttributeEquals("filename", "file1");
+        success.get(0).assertAttributeEquals("mime.type", "test/bla");
+        success.get(1).assertAttributeEquals("filename", "file3");
+        final MockFlowFile failure = runner.getFlowFilesForRelationship(GetGdriveMetadata.REL_FAILURE).get(0);
+        failure.assertContentEquals("c2");
+        failure.assertAttributeEquals("error.code", "404");
+        failure.assertAttributeEquals("error.message", "File not found: f2.");
+    }
+
+    @Test
+    public void testTransientErrorsAreRequeued() {
+        batchContent = part("429 Too Many Requests", "{\"error\": {\"code\": 429, \"message\": \"Rate Limit Exceeded\"}}")
+                + part("403 Forbidden", "{\"error\": {\"code\": 403, \"message\": \"User Rate Limit Exceeded\", "
+                        + "\"errors\": [{\"domain\": \"usageLimits\", \"reason\": \"userRateLimitExceeded\", \"message\": \"User Rate Limit Exceeded\"}]}}")
+                + part("503 Service Unavailable", "{\"error\": {\"code\": 503, \"message\": \"Backend Error\"}}")
+                + part("403 Forbidden", "{\"error\": {\"code\": 403, \"message\": \"Insufficient permissions\", "
+                        + "\"errors\": [{\"domain\": \"global\", \"reason\": \"insufficientFilePermissions\", \"message\": \"Insufficient permissions\"}]}}");
+        runner.enqueue("c1", fileid("f1"));
+        runner.enqueue("c2", fileid("f2"));
+        runner.enqueue("c3", fileid("f3"));
+        runner.enqueue("c4", fileid("f4"));
+        runner.run();
+        runner.assertTransferCount(GetGdriveMetadata.REL_SUCCESS, 0);
+        runner.assertTransferCount(GetGdriveMetadata.REL_FAILURE, 1);
+        runner.getFlowFilesForRelationship(GetGdriveMetadata.REL_FAILURE).get(0).assertAttributeEquals("error.code", "403");
+        assertEquals(3, runner.getQueueSize().getObjectCount()); // (penalized, for the next run)
+        assertEquals(3, runner.getCounterValue("GDrive metadata requests requeued").longValue());
+    }
+
+    @Test
+    public void testRateLimitedBatchBacksOff() {
+        batchContent = part("429 Too Many Requests", "{\"error\": {\"code\": 429, \"message\": \"Rate Limit Exceeded\"}}")
+                + part("403 Forbidden", "{\"error\": {\"code\": 403, \"message\": \"User Rate Limit Exceeded\", "
+                        + "\"errors\": [{\"domain\": \"usageLimits\", \"reason\": \"userRateLimitExceeded\", \"message\": \"User Rate Limit Exceeded\"}]}}");
+        final List<Long> pauses = Collections.synchronizedList(new ArrayList<>());
+        final GdriveRateLimiter rateLimiter = new GdriveRateLimiter(GdriveRateLimiter.DEFAULT_REQUESTS_PER_SECOND, pauses::add); // (no actual waiting)
+        final TestRunner limitedRunner = runnerWith(StandardGdriveClientService.createDrive(transport, new GoogleCredential().setAccessToken("token"), rateLimiter));
+        assertSame(rateLimiter, StandardGdriveClientService.rateLimiterOf(StandardGdriveClientService.createDrive(transport, new GoogleCredential(), rateLimiter)));
+        limitedRunner.enqueue("c1", fileid("f1"));
+        limitedRunner.enqueue("c2", fileid("f2"));
+        limitedRunner.run();
+        assertEquals(1, requestUrls.size()); // (parts are not retried within the batch)
+        assertEquals(2, limitedRunner.getQueueSize().getObjectCount());
+        assertEquals(1, rateLimiter.getRateLimitedResponses()); // (once per batch)
+        assertEquals(1, limitedRunner.getCounterValue(GdriveRateLimiter.COUNTER_RATE_LIMITED).longValue());
+
+        limitedRunner.run(); // (next batch waits for the pause)
+        assertFalse(pauses.isEmpty());
+        assertTrue(pauses.get(0) >= GdriveRateLimiter.INITIAL_BACKOFF_MILLIS / 2);
+    }
+
+    @Test
+    public void testFailedBatch() {
+        failBatch = true;
+        runner.enqueue("c1", fileid("f1"));
+        runner.enqueue("c2", fileid("f2"));
+        runner.run();
+        runner.assertTransferCount(GetGdriveMetadata.REL_SUCCESS, 0);
+        runner.assertTransferCount(GetGdriveMetadata.REL_FAILURE, 2);
+    }
+}
@@ -0,0 +1,125 @@
+package org.apache.nifi.processors.gdrive;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ListGdriveFolderTest {
+
+    DriveEmulator emulator;
+    TestRunner runner;
+    FetchGdriveTest.MapCacheForTest cache;
+
+    @Before
+    public void setup() throws Exception {
+        emulator = new DriveEmulator();
+        emulator.addFolder("root", "root", null);
+        emulator.addFile("f1", "file1.txt", "text/plain", "root", "1".getBytes(StandardCharsets.UTF_8));
+        emulator.addFolder("a", "a", "root");
+        emulator.addFile("f2", "file2.txt", "text/plain", "a", "2".getBytes(StandardCharsets.UTF_8));
+        emulator.addFolder("b", "b", "a");
+        emulator.addFile("f3", "file3.txt", "text/plain", "b", "3".getBytes(StandardCharsets.UTF_8));
+        runner = TestRunners.newTestRunner(new ListGdriveFolder());
+        final StandardGdriveClientService service = new StandardGdriveClientService();
+        runner.addControllerService("gdrive", service);
+        runner.setProperty(service, StandardGdriveClientService.IAM_USER_JSON, emulator.createIamUserJson());
+        runner.setProperty(service, StandardGdriveClientService.ROOT_URL, emulator.getRootUrl());
+        runner.enableControllerService(service);
+        runner.setProperty(AbstractGdriveProcessor.GDRIVE_CLIENT_SERVICE, "gdrive");
+        runner.setProperty(ListGdriveFolder.PAGE_SIZE, "1");
+        cache = new FetchGdriveTest.MapCacheForTest();
+        runner.addControllerService("cache", cache);
+        runner.enableControllerService(cache);
+        runner.setProperty(ListGdriveFolder.DISTRIBUTED_CACHE_SERVICE, "cache");
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void testCrawl() throws Exception {
+        assertEquals(Arrays.asList("a", "a/b", "a/b/file3.txt", "a/file2.txt", "file1.txt"), crawl());
+        assertEquals(5, emulator.getRequestCount("GET files")); // (page size 1 = one page per item)
+        assertEquals(3, cache.values.size()); // (one entry per folder)
+    }
+
+    @Test
+    public void testTimestampsFromCache() throws Exception {
+        cache.values.put(ListGdriveFolder.CACHE_KEY_PREFIX + runner.getProcessor().getIdentifier() + ".b", String.valueOf(Long.MAX_VALUE / 2));
+        assertEquals(Arrays.asList("a", "a/b", "a/file2.txt", "file1.txt"), crawl()); // (nothing in b newer than that)
+        assertEquals(3, cache.values.size());
+    }
+
+    @Test
+    public void testListingAttributes() {
+        runner.enqueue(new byte[0], Collections.singletonMap("fileid", "a"));
+        runner.run();
+        runner.assertTransferCount(ListGdriveFolder.REL_SUCCESS, 2);
+        runner.assertTransferCount(ListGdriveFolder.REL_FOLDERS, 1);
+        runner.assertTransferCount(ListGdriveFolder.REL_ORIGINAL, 1);
+        final MockFlowFile folder = runner.getFlowFilesForRelationship(ListGdriveFolder.REL_FOLDERS).get(0);
+        folder.assertAttributeEquals("fileid", "b");
+        folder.assertAttributeEquals("is.folder", "true");
+        folder.assertAttributeEquals("file.path", "b");
+        folder.assertAttributeEquals("parent.folder", "a");
+        runner.clearTransferState();
+
+        runner.enqueue(folder);
+        runner.run();
+        final MockFlowFile file = runner.getFlowFilesForRelationship(ListGdriveFolder.REL_SUCCESS).get(0);
+        file.assertAttributeEquals("filename", "file3.txt");
+        file.assertAttributeEquals("fileid", "f3");
+        file.assertAttributeEquals("file.path", "b/file3.txt");
+        file.assertAttributeEquals("parent.folder", "a");
+        file.assertAttributeEquals("file.parent.folder", "b");
+    }
+
+    @Test
+    public void testOnlyNewFilesOnNextCrawl() throws Exception {
+        crawl();
+        Thread.sleep(5); // (newer timestamp)
+        emulator.addFile("f4", "file4.txt", "text/plain", "b", "4".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Collections.singletonList("a/b/file4.txt"), crawl());
+        assertEquals(Collections.emptyList(), crawl());
+    }
+
+    @Test
+    public void testFailure() {
+        emulator.failNextRequests(404);
+        runner.enqueue(new byte[0], Collections.singletonMap("fileid", "root"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ListGdriveFolder.REL_FAILURE, 1);
+    }
+
+    /**
+     * Lists the root folder and routes the folders back until done
+     *
+     * @return the sorted paths listed
+     */
+    private List<String> crawl() {
+        runner.clearTransferState();
+        runner.enqueue(new byte[0], Collections.singletonMap("fileid", "root"));
+        final List<String> paths = new ArrayList<>();
+        while (runner.getQueueSize().getObjectCount() > 0) {
+            runner.run();
+            runner.getFlowFilesForRelationship(ListGdriveFolder.REL_SUCCESS).forEach(flowFile -> paths.add(flowFile.getAttribute("file.path")));
+            runner.getFlowFilesForRelationship(ListGdriveFolder.REL_FOLDERS).forEach(runner::enqueue);
+            runner.clearTransferState();
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+}
@@ -2,11 +2,18 @@ package org.apache.nifi.processors.gdrive;
 
 import com.google.api.client.util.DateTime;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.Drive.Changes;
+import com.google.api.services.drive.Drive.Changes.GetStartPageToken;
 import com.google.api.services.drive.Drive.Files;
 import com.google.api.services.drive.Drive.Files.List;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.StartPageToken;
+import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.serialization.record.MockRecordWriter;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
@@ -19,8 +26,11 @@ import org.mockito.MockitoAnnotations;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class ListGdriveTest {
@@ -79,6 +89,228 @@ public class ListGdriveTest {
         assertTrue(runner.getLogger().getErrorMessages().get(0).getMsg().contains("Failed to list contents"));
     }
 
+    @Test
+    public void testQueryPushDownAndAdditionalFields() throws Exception {
+        fileMeta.setSize(42L);
+        runner.setProperty(ListGdrive.ADDITIONAL_FIELDS, "size, md5Checksum");
+        runner.setProperty(ListGdrive.MIME_TYPE_FILTER, "test/bla");
+        runner.run();
+        runner.assertTransferCount(ListGdrive.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = runner.getFlowFilesForRelationship(ListGdrive.REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals("file.size", "42");
+        flowFile.assertAttributeNotExists("file.md5Checksum");
+        Mockito.verify(listMock).setQ("'424242' in parents and mimeType = 'test/bla'");
+        Mockito.verify(listMock).setFields("nextPageToken, files(id, name, mimeType, createdTime, modifiedTime, trashed, size, md5Checksum)");
+        runner.clearTransferState();
+        runner.setProperty(ListGdrive.RECURSIVE_SEARCH, "true");
+        runner.run(); // (now with the timestamp of the last run)
+        runner.assertTransferCount(ListGdrive.REL_SUCCESS, 0);
+        Mockito.verify(listMock).setQ("'424242' in parents and (mimeType = 'application/vnd.google-apps.folder' or "
+                + "(modifiedTime > '2021-12-12T00:00:00.000Z' and mimeType = 'test/bla'))");
+    }
+
+    @Test
+    public void testTooManyPendingFolders() throws Exception {
+        final java.util.List<File> folders = new java.util.ArrayList<>();
+        for (int i = 0; i < 3; i++) { // (in every folder - i.e. the tree never ends)
+            folders.add(new File().setName("folder" + i).setId("f" + i).setMimeType(ListGdrive.FOLDER_MIME_TYPE)
+                    .setCreatedTime(createdTime).setModifiedTime(modifiedTime));
+        }
+        Mockito.when(listMock.execute()).thenReturn(new FileList().setFiles(folders));
+        runner.setProperty(ListGdrive.RECURSIVE_SEARCH, "true");
+        runner.setProperty(ListGdrive.MAX_PENDING_PAGES, "10");
+        runner.run();
+        runner.assertTransferCount(ListGdrive.REL_SUCCESS, 15); // (what was listed is emitted nevertheless)
+        assertTrue(runner.getLogger().getErrorMessages().isEmpty());
+        assertTrue(Arrays.toString(runner.getLogger().getWarnMessages().get(0).getArgs()).contains("10"));
+        Mockito.verify(listMock, Mockito.times(5)).execute(); // (each page adds 3 folders for the one listed: 11 pending after the 5th)
+        assertFalse(runner.getStateManager().getState(Scope.LOCAL).toMap().isEmpty()); // (to be continued)
+        assertEquals(1, runner.getCounterValue("GDrive listings suspended").longValue());
+    }
+
+    @Test
+    public void testTooManyPendingFoldersContinuesNextRun() throws Exception {
+        final Map<String, java.util.List<File>> tree = new HashMap<>();
+        tree.put("424242", Arrays.asList(folder("a", "A"), folder("b", "B"), folder("c", "C"), file("f0", "file0")));
+        tree.put("a", Arrays.asList(folder("a1", "A1"), folder("a2", "A2"), folder("a3", "A3")));
+        for (String id : Arrays.asList("a1", "a2", "a3", "b", "c")) {
+            tree.put(id, Arrays.asList(file(id + "-f", "file")));
+        }
+        Mockito.when(filesMock.list()).thenAnswer(inv -> folderListMock(tree));
+        runner.setProperty(ListGdrive.RECURSIVE_SEARCH, "true");
+        runner.setProperty(ListGdrive.MAX_PENDING_PAGES, "3");
+        runner.run(); // (A's subfolders make 5 pending pages)
+        runner.assertTransferCount(ListGdrive.REL_SUCCESS, 7);
+        assertFalse(runner.getStateManager().getState(Scope.LOCAL).toMap().isEmpty());
+        runner.clearTransferState();
+        runner.run(); // (only files left - drains)
+        runner.assertTransferCount(ListGdrive.REL_SUCCESS, 5);
+        final Map<String, String> paths = new HashMap<>();
+        runner.getFlowFilesForRelationship(ListGdrive.REL_SUCCESS).forEach(flowFile -> paths.put(flowFile.getAttribute("fileid"), flowFile.getAttribute("file.path")));
+        assertEquals("A/A2/file", paths.get("a2-f"));
+        assertEquals("C/file", paths.get("c-f"));
+        assertTrue(runner.getStateManager().getState(Scope.LOCAL).toMap().isEmpty());
+        assertEquals(1, runner.getCounterValue("GDrive listings resumed").longValue());
+    }
+
+    @Test
+    public void testNameMatchesLikeGdrive() {
+        assertTrue(ListGdrive.nameMatches("Report 2021.pdf", "report"));
+        assertTrue(ListGdrive.nameMatches("Report 2021.pdf", "2021"));
+        assertTrue(ListGdrive.nameMatches("annual-report.pdf", "REP"));
+        assertTrue(ListGdrive.nameMatches("Report 2021.pdf", "report 20"));
+        assertFalse(ListGdrive.nameMatches("Report 2021.pdf", "port"));
+        assertFalse(ListGdrive.nameMatches("HelloWorld", "World"));
+        assertFalse(ListGdrive.nameMatches(null, "x"));
+    }
+
+    @Test
+    public void testChangesListing() throws Exception {
+        final Changes changesMock = Mockito.mock(Changes.class);
+        final GetStartPageToken startPageTokenMock = Mockito.mock(GetStartPageToken.class);
+        final Changes.List changesListMock = Mockito.mock(Changes.List.class);
+        final Files.Get getMock = Mockito.mock(Files.Get.class);
+        Mockito.when(driveMock.changes()).thenReturn(changesMock);
+        Mockito.when(changesMock.getStartPageToken()).thenReturn(startPageTokenMock);
+        Mockito.when(startPageTokenMock.execute()).thenReturn(new StartPageToken().setStartPageToken("1"));
+        Mockito.when(changesMock.list("1")).thenReturn(changesListMock);
+        Mockito.when(changesListMock.setPageSize(Mockito.anyInt())).thenReturn(changesListMock);
+        Mockito.when(changesListMock.setFields(Mockito.anyString())).thenReturn(changesListMock);
+        final File inSubfolder = new File().setName("y-file").setId("0816").setCreatedTime(createdTime).setModifiedTime(modifiedTime)
+                .setMimeType("test/bla").setParents(Arrays.asList("sub"));
+        final File elsewhere = new File().setName("z-file").setId("0817").setCreatedTime(createdTime).setModifiedTime(modifiedTime)
+                .setMimeType("test/bla").setParents(Arrays.asList("other"));
+        Mockito.when(changesListMock.execute()).thenReturn(new ChangeList().setNewStartPageToken("2").setChanges(Arrays.asList(
+                new Change().setFileId("0816").setFile(inSubfolder),
+                new Change().setFileId("0817").setFile(elsewhere),
+                new Change().setFileId("0818").setRemoved(true))));
+        Mockito.when(filesMock.get(Mockito.anyString())).thenReturn(getMock);
+        Mockito.when(getMock.setFields(Mockito.anyString())).thenReturn(getMock);
+        Mockito.when(getMock.execute()).thenReturn(
+                new File().setId("sub").setName("subfolder").setParents(Arrays.asList("424242")),
+                new File().setId("other").setName("otherfolder").setParents(null));
+        runner.setProperty(ListGdrive.LISTING_STRATEGY, ListGdrive.STRATEGY_CHANGES.getValue());
+        runner.setProperty(ListGdrive.RECURSIVE_SEARCH, "true");
+        runner.run(); // (lists the folder & remembers the token)
+        runner.assertTransferCount(ListGdrive.REL_SUCCESS, 1);
+        runner.getStateManager().assertStateEquals(ListGdrive.CHANGES_PAGE_TOKEN, "1", Scope.CLUSTER);
+        runner.clearTransferState();
+        runner.run(); // (only the changes)
+        runner.assertTransferCount(ListGdrive.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = runner.getFlowFilesForRelationship(ListGdrive.REL_SUCCESS).get(0);
+        assertEquals("y-file", flowFile.getAttribute("filename"));
+        assertEquals("subfolder/y-file", flowFile.getAttribute("file.path"));
+        assertEquals("sub", flowFile.getAttribute("file.parent.folder"));
+        runner.getStateManager().assertStateEquals(ListGdrive.CHANGES_PAGE_TOKEN, "2", Scope.CLUSTER);
+        Mockito.verify(listMock).execute(); // (folder listed only once)
+    }
+
+    @Test
+    public void testChangesListingCommitsPageTokenReached() throws Exception {
+        final Changes changesMock = Mockito.mock(Changes.class);
+        final Changes.List firstPageMock = Mockito.mock(Changes.List.class);
+        final Changes.List secondPageMock = Mockito.mock(Changes.List.class);
+        Mockito.when(driveMock.changes()).thenReturn(changesMock);
+        Mockito.when(changesMock.list("1")).thenReturn(firstPageMock);
+        Mockito.when(changesMock.list("1b")).thenReturn(secondPageMock);
+        for (Changes.List pageMock : Arrays.asList(firstPageMock, secondPageMock)) {
+            Mockito.when(pageMock.setPageSize(Mockito.anyInt())).thenReturn(pageMock);
+            Mockito.when(pageMock.setFields(Mockito.anyString())).thenReturn(pageMock);
+        }
+        final File trashed = new File().setName("t-file").setId("0819").setCreatedTime(createdTime).setModifiedTime(modifiedTime)
+                .setMimeType("test/bla").setTrashed(true).setParents(Arrays.asList("424242"));
+        Mockito.when(firstPageMock.execute()).thenReturn(new ChangeList().setNextPageToken("1b").setChanges(Arrays.asList(
+                new Change().setFileId("0819").setFile(trashed))));
+        Mockito.when(secondPageMock.execute()).thenThrow(new IOException("connection reset"));
+        final Map<String, String> state = new HashMap<>();
+        state.put(ListGdrive.CURRENT_TIMESTAMP, "0");
+        state.put(ListGdrive.CHANGES_PAGE_TOKEN, "1");
+        runner.getStateManager().setState(state, Scope.CLUSTER);
+        runner.setProperty(ListGdrive.LISTING_STRATEGY, ListGdrive.STRATEGY_CHANGES.getValue());
+        runner.setProperty(ListGdrive.BATCH_SIZE, "1");
+        runner.run();
+        // (the trashed file is included by default - and committed with the token of the page after it before the failure)
+        runner.assertTransferCount(ListGdrive.REL_SUCCESS, 1);
+        assertEquals("t-file", runner.getFlowFilesForRelationship(ListGdrive.REL_SUCCESS).get(0).getAttribute("filename"));
+        runner.getStateManager().assertStateEquals(ListGdrive.CHANGES_PAGE_TOKEN, "1b", Scope.CLUSTER);
+
+        runner.clearTransferState();
+        runner.setProperty(ListGdrive.INCLUDE_TRASHED, "false");
+        Mockito.doReturn(new ChangeList().setNewStartPageToken("2").setChanges(Arrays.asList(
+                new Change().setFileId("0819").setFile(trashed)))).when(secondPageMock).execute();
+        runner.run(); // (from the page reached)
+        runner.assertTransferCount(ListGdrive.REL_SUCCESS, 0);
+        runner.getStateManager().assertStateEquals(ListGdrive.CHANGES_PAGE_TOKEN, "2", Scope.CLUSTER);
+        Mockito.verify(firstPageMock).execute();
+    }
+
+    @Test
+    public void testConcurrentRecursiveList() throws Exception {
+        final Map<String, java.util.List<File>> tree = new HashMap<>();
+        tree.put("424242", Arrays.asList(folder("a", "A"), folder("b", "B"), file("f0", "file0")));
+        tree.put("a", Arrays.asList(file("f1", "file1"), folder("c", "C")));
+        tree.put("b", Arrays.asList(file("f2", "file2")));
+        tree.put("c", Arrays.asList(file("f3", "file3")));
+        Mockito.when(filesMock.list()).thenAnswer(inv -> folderListMock(tree));
+        runner.setProperty(ListGdrive.RECURSIVE_SEARCH, "true");
+        runner.setProperty(ListGdrive.LISTING_THREADS, "3");
+        runner.run();
+        runner.assertTransferCount(ListGdrive.REL_SUCCESS, 7);
+        final Map<String, String> paths = new HashMap<>();
+        runner.getFlowFilesForRelationship(ListGdrive.REL_SUCCESS).forEach(flowFile -> paths.put(flowFile.getAttribute("fileid"), flowFile.getAttribute("file.path")));
+        assertEquals("file0", paths.get("f0"));
+        assertEquals("A/file1", paths.get("f1"));
+        assertEquals("B/file2", paths.get("f2"));
+        assertEquals("A/C/file3", paths.get("f3"));
+    }
+
+    @Test
+    public void testRecordListing() throws Exception {
+        final Map<String, java.util.List<File>> tree = new HashMap<>();
+        tree.put("424242", Arrays.asList(folder("a", "A"), file("f0", "file0")));
+        tree.put("a", Arrays.asList(file("f1", "file1")));
+        Mockito.when(filesMock.list()).thenAnswer(inv -> folderListMock(tree));
+        final MockRecordWriter recordWriter = new MockRecordWriter(null, false);
+        runner.addControllerService("writer", recordWriter);
+        runner.enableControllerService(recordWriter);
+        runner.setProperty(ListGdrive.RECORD_WRITER, "writer");
+        runner.setProperty(ListGdrive.RECURSIVE_SEARCH, "true");
+        runner.setProperty(ListGdrive.BATCH_SIZE, "1"); // (does not split the listing)
+        runner.setProperty(ListGdrive.ADDITIONAL_FIELDS, "size");
+        tree.get("424242").get(1).setSize(42L);
+        runner.run();
+        runner.assertTransferCount(ListGdrive.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = runner.getFlowFilesForRelationship(ListGdrive.REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals("record.count", "3");
+        final String content = flowFile.getContent();
+        assertTrue(content.contains("file0,f0,"));
+        assertTrue(content.contains(",file0,424242,424242,42"));
+        assertTrue(content.contains(",A/file1,424242,a"));
+        assertEquals("fileSize", ListGdrive.recordSchema(Arrays.asList("size")).getField(9).getFieldName());
+    }
+
+    private List folderListMock(Map<String, java.util.List<File>> tree) throws IOException {
+        final List folderList = Mockito.mock(List.class);
+        final String[] query = new String[1];
+        Mockito.when(folderList.setQ(Mockito.anyString())).thenAnswer(inv -> {
+            query[0] = inv.getArgument(0);
+            return folderList;
+        });
+        Mockito.when(folderList.setPageSize(Mockito.anyInt())).thenReturn(folderList);
+        Mockito.when(folderList.setPageToken(Mockito.isNull())).thenReturn(folderList);
+        Mockito.when(folderList.setFields(Mockito.anyString())).thenReturn(folderList);
+        Mockito.when(folderList.execute()).thenAnswer(inv -> new FileList().setFiles(tree.get(query[0].split("'")[1])));
+        return folderList;
+    }
+
+    private File folder(String id, String name) {
+        return file(id, name).setMimeType(ListGdrive.FOLDER_MIME_TYPE);
+    }
+
+    private File file(String id, String name) {
+        return new File().setId(id).setName(name).setCreatedTime(createdTime).setModifiedTime(modifiedTime).setMimeType("test/bla");
+    }
+
     class ListGdriveForTest extends ListGdrive {
         @Override
         Drive createDriveService(ProcessContext context) throws IOException, GeneralSecurityException {
@@ -1,6 +1,11 @@
 package org.apache.nifi.processors.gdrive;
 
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.testing.http.MockHttpTransport;
 import com.google.api.client.util.DateTime;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.Drive.Files;
@@ -9,7 +14,9 @@ import com.google.api.services.drive.Drive.Files.Update;
 import com.google.api.services.drive.Drive.Files.List;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
@@ -20,13 +27,20 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class PutGdriveTest {
@@ -114,6 +128,28 @@ public class PutGdriveTest {
         Mockito.verify(listMock).execute();
     }
 
+    @Test
+    public void testSkipUnchanged() throws Exception {
+        runner.setProperty(PutGdrive.SKIP_UNCHANGED, "true");
+        fileMeta.setMd5Checksum("008C5926CA861023C1D2A36653FD88E2"); // (md5 of "whatever")
+        Map<String, String> attrs = new HashMap<>();
+        attrs.put("filename", "existfile");
+        attrs.put("mime.type", "test/test");
+        runner.enqueue("whatever", attrs);
+        runner.enqueue("whatever else", attrs);
+        runner.run(2);
+        runner.assertTransferCount(PutGdrive.REL_SUCCESS, 2);
+        final MockFlowFile unchanged = runner.getFlowFilesForRelationship(PutGdrive.REL_SUCCESS).get(0);
+        assertEquals("0815", unchanged.getAttribute("fileid"));
+        assertEquals("true", unchanged.getAttribute("file.unchanged"));
+        final MockFlowFile changed = runner.getFlowFilesForRelationship(PutGdrive.REL_SUCCESS).get(1);
+        assertEquals("0816", changed.getAttribute("fileid"));
+        assertEquals("false", changed.getAttribute("file.unchanged"));
+        Mockito.verify(updateMock, Mockito.times(1)).execute();
+        Mockito.verify(listMock, Mockito.times(2)).setFields("files(id, name, md5Checksum)");
+        assertEquals(1, runner.getCounterValue("GDrive unchanged uploads skipped").longValue());
+    }
+
     @Test
     public void testFailedPut() throws Exception {
         Mockito.when(updateMock.execute()).thenThrow(IOException.class); // (deviate from std)
@@ -127,7 +163,155 @@ public class PutGdriveTest {
         assertTrue(runner.getLogger().getErrorMessages().get(0).getMsg().contains("Failed to put contents"));
     }
 
+    @Test
+    public void testFailedPutClosesContent() throws Exception {
+        Mockito.when(filesMock.update(Mockito.anyString(), Mockito.isNull(), Mockito.any(InputStreamContent.class))).thenReturn(updateMock); // (content left open)
+        Mockito.when(updateMock.execute()).thenThrow(IOException.class);
+        Map<String, String> attrs = new HashMap<>();
+        attrs.put("filename", "existfile");
+        attrs.put("mime.type", "test/test");
+        runner.enqueue("whatever", attrs);
+        runner.run();
+        runner.assertTransferCount(PutGdrive.REL_SUCCESS, 0);
+        runner.assertTransferCount(PutGdrive.REL_FAILURE, 1);
+    }
+
+    @Test
+    public void testExistenceQueryEscapesName() throws Exception {
+        Map<String, String> attrs = new HashMap<>();
+        attrs.put("filename", "it's a \\ file");
+        attrs.put("mime.type", "test/test");
+        runner.enqueue("whatever", attrs);
+        runner.run();
+        runner.assertTransferCount(PutGdrive.REL_SUCCESS, 1);
+        Mockito.verify(listMock).setQ("name = 'it\\'s a \\\\ file' and '424242' in parents");
+    }
+
+    @Test
+    public void testConcurrentUploadsCopySmallContentOnly() throws Exception {
+        Mockito.when(listMock.execute()).thenReturn(new FileList());
+        final Map<String, String> uploaded = new ConcurrentHashMap<>();
+        final Map<String, Thread> uploadThreads = new ConcurrentHashMap<>();
+        Mockito.when(filesMock.create(Mockito.any(File.class), Mockito.any(InputStreamContent.class))).thenAnswer((InvocationOnMock inv) -> {
+            final String name = ((File) inv.getArgument(0)).getName();
+            uploadThreads.put(name, Thread.currentThread());
+            try (InputStream content = ((InputStreamContent) inv.getArgument(1)).getInputStream()) {
+                uploaded.put(name, DigestUtils.md5Hex(content));
+            }
+            return createMock;
+        });
+        runner.setProperty(PutGdrive.UPLOAD_BATCH_SIZE, "3");
+        final byte[] large = new byte[(int) PutGdrive.MAX_CONTENT_COPY_IN_MEMORY + 1]; // (not copied - uploaded on the onTrigger thread)
+        Arrays.fill(large, (byte) 'x');
+        runner.enqueue(large, Collections.singletonMap("filename", "large"));
+        runner.enqueue("small", Collections.singletonMap("filename", "small"));
+        runner.enqueue("other", Collections.singletonMap("filename", "other"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PutGdrive.REL_SUCCESS, 3);
+        assertEquals(DigestUtils.md5Hex(large), uploaded.get("large"));
+        assertEquals(DigestUtils.md5Hex("small"), uploaded.get("small"));
+        assertEquals(DigestUtils.md5Hex("other"), uploaded.get("other"));
+        final Thread triggerThread = ((PutGdriveForTest) processor).triggerThread;
+        assertSame(triggerThread, uploadThreads.get("large"));
+        assertNotSame(triggerThread, uploadThreads.get("small"));
+    }
+
+    @Test
+    public void testInterruptedBatchKeepsFinishedUploads() throws Exception {
+        Mockito.when(listMock.execute()).thenReturn(new FileList());
+        final Create slowCreateMock = Mockito.mock(Create.class);
+        Mockito.when(slowCreateMock.setFields(Mockito.anyString())).thenReturn(slowCreateMock);
+        Mockito.when(slowCreateMock.execute()).thenAnswer((InvocationOnMock inv) -> {
+            Thread.sleep(200); // (fast is routed meanwhile)
+            ((PutGdriveForTest) processor).triggerThread.interrupt(); // (e.g. stopped)
+            Thread.sleep(10000); // (until cancelled)
+            return newFileMeta;
+        });
+        Mockito.when(filesMock.create(Mockito.any(File.class), Mockito.any(InputStreamContent.class))).thenAnswer((InvocationOnMock inv) ->
+                "slow".equals(((File) inv.getArgument(0)).getName()) ? slowCreateMock : createMock);
+        runner.setProperty(PutGdrive.UPLOAD_BATCH_SIZE, "3");
+        runner.setProperty(PutGdrive.CONCURRENT_UPLOADS, "1"); // (later is not started before slow is done)
+        runner.enqueue("whatever", Collections.singletonMap("filename", "fast"));
+        runner.enqueue("whatever", Collections.singletonMap("filename", "slow"));
+        runner.enqueue("whatever", Collections.singletonMap("filename", "later"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PutGdrive.REL_SUCCESS, 1);
+        runner.getFlowFilesForRelationship(PutGdrive.REL_SUCCESS).get(0).assertAttributeEquals("filename", "fast");
+        assertEquals(2, runner.getQueueSize().getObjectCount()); // (slow and later - to be uploaded again)
+        Mockito.verify(createMock, Mockito.times(1)).execute();
+    }
+
+    @Test
+    public void testFolderCache() throws Exception {
+        Map<String, String> attrs = new HashMap<>();
+        attrs.put("filename", "a/b/existfile");
+        attrs.put("mime.type", "test/test");
+        runner.enqueue("whatever", attrs);
+        attrs.put("filename", "a/b/otherfile");
+        runner.enqueue("whatever", attrs);
+        runner.run(2);
+        runner.assertTransferCount(PutGdrive.REL_SUCCESS, 2);
+        Mockito.verify(listMock, Mockito.times(3 + 1)).execute(); // (a, b, file - then only file)
+    }
+
+    @Test
+    public void testFolderCacheInvalidatedOnNotFound() throws Exception {
+        final FileList existing = new FileList().setFiles(Arrays.asList(fileMeta));
+        Mockito.when(listMock.execute())
+                .thenReturn(existing, existing, existing)
+                .thenThrow(new GoogleJsonResponseException(new HttpResponseException.Builder(404, "Not Found", new HttpHeaders()), null))
+                .thenReturn(existing);
+        Map<String, String> attrs = new HashMap<>();
+        attrs.put("filename", "a/b/existfile");
+        attrs.put("mime.type", "test/test");
+        runner.enqueue("whatever", attrs);
+        attrs.put("filename", "a/b/otherfile");
+        runner.enqueue("whatever", attrs);
+        runner.run(2);
+        runner.assertTransferCount(PutGdrive.REL_SUCCESS, 2);
+        Mockito.verify(listMock, Mockito.times(3 + 1 + 3)).execute(); // (a, b, file - file not found - a, b, file again)
+    }
+
+    @Test
+    public void testFolderCacheDisabled() throws Exception {
+        runner.setProperty(PutGdrive.FOLDER_CACHE_SIZE, "0");
+        Map<String, String> attrs = new HashMap<>();
+        attrs.put("filename", "a/b/existfile");
+        attrs.put("mime.type", "test/test");
+        runner.enqueue("whatever", attrs);
+        runner.enqueue("whatever", attrs);
+        runner.run(2);
+        runner.assertTransferCount(PutGdrive.REL_SUCCESS, 2);
+        Mockito.verify(listMock, Mockito.times(3 + 3)).execute();
+    }
+
+    @Test
+    public void testUploadModeBySize() throws Exception {
+        runner.setProperty(PutGdrive.RESUMABLE_UPLOAD_THRESHOLD, "1 MB");
+        runner.setProperty(PutGdrive.UPLOAD_CHUNK_SIZE, "1000 KB"); // (rounded down to 768 KB)
+        runner.run(); // (nothing queued - just schedule)
+        final GdriveCounters counters = new GdriveCounters();
+        final MediaHttpUploader smallUploader = new MediaHttpUploader(new InputStreamContent("test/test", new ByteArrayInputStream(new byte[0])), new MockHttpTransport(), null);
+        processor.configureUpload(smallUploader, 1000, counters);
+        assertTrue(smallUploader.isDirectUploadEnabled());
+        final MediaHttpUploader largeUploader = new MediaHttpUploader(new InputStreamContent("test/test", new ByteArrayInputStream(new byte[0])), new MockHttpTransport(), null);
+        processor.configureUpload(largeUploader, 2 * 1024 * 1024, counters);
+        assertFalse(largeUploader.isDirectUploadEnabled());
+        assertEquals(3 * MediaHttpUploader.MINIMUM_CHUNK_SIZE, largeUploader.getChunkSize());
+        final ProcessSession session = Mockito.mock(ProcessSession.class);
+        counters.drainTo(session);
+        Mockito.verify(session).adjustCounter("GDrive resumable uploads", 1, false);
+    }
+
     class PutGdriveForTest extends PutGdrive {
+        volatile Thread triggerThread;
+
+        @Override
+        public void onTrigger(ProcessContext context, ProcessSession session) {
+            triggerThread = Thread.currentThread();
+            super.onTrigger(context, session);
+        }
+
         @Override
         Drive createDriveService(ProcessContext context) throws IOException, GeneralSecurityException {
             return driveMock;
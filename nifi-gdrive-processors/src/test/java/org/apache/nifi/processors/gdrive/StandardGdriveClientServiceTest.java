@@ -0,0 +1,87 @@
+package org.apache.nifi.processors.gdrive;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.routing.HttpRoute;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StandardGdriveClientServiceTest {
+
+    @Test
+    @SuppressWarnings("deprecation") // (see StandardGdriveClientService.createTransport)
+    public void testCreateTransport() throws Exception {
+        assertTrue(StandardGdriveClientService.createTransport(StandardGdriveClientService.TRANSPORT_JAVA.getValue(), 5) instanceof NetHttpTransport);
+        final HttpTransport transport = StandardGdriveClientService.createTransport(StandardGdriveClientService.TRANSPORT_APACHE.getValue(), 42);
+        assertTrue(transport instanceof ApacheHttpTransport);
+        assertEquals(42, ConnManagerParams.getMaxConnectionsPerRoute(((ApacheHttpTransport) transport).getHttpClient().getParams())
+                .getMaxForRoute(new HttpRoute(new HttpHost("www.googleapis.com", 443, "https"))));
+        transport.shutdown();
+    }
+
+    @Test
+    public void testCompressionAndTimeouts() throws Exception {
+        final List<String> userAgents = Collections.synchronizedList(new ArrayList<>());
+        final MockHttpTransport transport = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() {
+                        userAgents.add(getFirstHeaderValue("User-Agent"));
+                        assertEquals("gzip", getFirstHeaderValue("Accept-Encoding"));
+                        return new MockLowLevelHttpResponse().setContentType("application/json").setContent("{\"id\": \"0815\"}");
+                    }
+                };
+            }
+        };
+        final Drive drive = StandardGdriveClientService.createDrive(transport, new GoogleCredential().setAccessToken("token"), 1000, 2000, true, null);
+        final Drive.Files.Get get = drive.files().get("0815");
+        assertEquals("0815", get.execute().getId());
+        assertTrue(userAgents.get(0).contains("gzip"));
+        assertEquals(1000, get.buildHttpRequest().getConnectTimeout());
+        assertEquals(2000, get.buildHttpRequest().getReadTimeout());
+    }
+
+    @Test
+    public void testForbiddenKeepsDetails() throws Exception {
+        final MockHttpTransport transport = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() {
+                        return new MockLowLevelHttpResponse().setStatusCode(403).setContentType("application/json").setContent("{\"error\": {\"code\": 403, "
+                                + "\"message\": \"Insufficient Permission\", \"errors\": [{\"domain\": \"global\", \"reason\": \"insufficientPermissions\"}]}}");
+                    }
+                };
+            }
+        };
+        final GdriveRateLimiter rateLimiter = new GdriveRateLimiter(GdriveRateLimiter.DEFAULT_REQUESTS_PER_SECOND, millis -> fail("not rate limited"));
+        final Drive drive = StandardGdriveClientService.createDrive(transport, new GoogleCredential().setAccessToken("token"), rateLimiter);
+        try {
+            drive.files().get("0815").execute();
+            fail("403 expected");
+        } catch (GoogleJsonResponseException e) { // (body read for the reason - but still there for the caller)
+            assertEquals(403, e.getStatusCode());
+            assertEquals("insufficientPermissions", e.getDetails().getErrors().get(0).getReason());
+        }
+        assertEquals(0, rateLimiter.getRateLimitedResponses());
+    }
+}